@@ -0,0 +1,54 @@
+package gitlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Switching between two branches and merging one into master. Before every
+ * merge, master is reset to where it was when the repository was generated.
+ *
+ * @author apotocki
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class BranchBenchmarks extends RepositoryState {
+    private String masterHead;
+    private boolean onMaster = true;
+
+    @Setup(Level.Trial)
+    public void rememberMaster() {
+        masterHead = Refs.getHeadCommitId(SyntheticRepository.MASTER);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetMaster() {
+        if (!onMaster) {
+            Repository.checkoutBranch(SyntheticRepository.MASTER);
+            onMaster = true;
+        }
+        Repository.reset(masterHead);
+    }
+
+    @Benchmark
+    public void checkoutBranch() {
+        Repository.checkoutBranch(SyntheticRepository.branchName(0));
+        onMaster = false;
+    }
+
+    @Benchmark
+    public void merge() {
+        Repository.merge(SyntheticRepository.branchName(0));
+    }
+}
@@ -0,0 +1,44 @@
+package gitlet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Commands that walk the history without changing the repository.
+ *
+ * @author apotocki
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HistoryBenchmarks extends RepositoryState {
+    @Benchmark
+    public void log() {
+        Repository.log();
+    }
+
+    @Benchmark
+    public void globalLog() {
+        Repository.globalLog();
+    }
+
+    @Benchmark
+    public void find() {
+        Repository.find("Commit 1");
+    }
+
+    @Benchmark
+    public Commit findSplitPoint() {
+        return Repository.findSplitPoint(SyntheticRepository.MASTER,
+                SyntheticRepository.branchName(0));
+    }
+}
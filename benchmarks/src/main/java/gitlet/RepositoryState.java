@@ -0,0 +1,42 @@
+package gitlet;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A synthetic repository shared by all benchmarks, generated once per fork
+ * with the shape given by the parameters.
+ *
+ * @author apotocki
+ */
+@State(Scope.Benchmark)
+public abstract class RepositoryState {
+    @Param({"1000", "10000"})
+    public int fileCount;
+
+    @Param({"4096"})
+    public int fileSize;
+
+    @Param({"10", "1000"})
+    public int historyDepth;
+
+    @Param({"2"})
+    public int branchCount;
+
+    @Setup(Level.Trial)
+    public void generateRepository() throws IOException {
+        SyntheticRepository.enter();
+        SyntheticRepository.generate(fileCount, fileSize, historyDepth, branchCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRepository() throws IOException {
+        SyntheticRepository.delete();
+    }
+}
@@ -0,0 +1,153 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generates repositories of a given shape for the benchmarks: FILECOUNT files of
+ * about FILESIZE bytes, spread over directories of FILES_PER_DIR files, a history
+ * of HISTORYDEPTH commits on master and BRANCHCOUNT branches forked from the
+ * middle of that history, each with a few commits of its own.
+ * Repository fixes its working directory when the class is loaded, so enter()
+ * must run before any other gitlet class is used. JMH forks a new JVM for every
+ * benchmark and parameter combination, so each gets a repository of its own.
+ *
+ * @author apotocki
+ */
+final class SyntheticRepository {
+    static final String MASTER = "master";
+    private static final int FILES_PER_DIR = 100;
+    private static final int COMMITS_PER_BRANCH = 3;
+    private static final String WORDS = "abcdefghijklmnopqrstuvwxyz";
+
+    private static Path root;
+
+    private SyntheticRepository() {
+    }
+
+    /**
+     * Creates an empty temporary directory and makes it the working directory
+     * gitlet will use, then silences System.out, where gitlet prints its results.
+     */
+    static Path enter() throws IOException {
+        root = Files.createTempDirectory("gitlet-bench");
+        System.setProperty("user.dir", root.toString());
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return root;
+    }
+
+    static String branchName(int branch) {
+        return "branch" + branch;
+    }
+
+    static String path(int file) {
+        return "dir" + (file / FILES_PER_DIR) + "/file" + file + ".txt";
+    }
+
+    /**
+     * Initializes a repository in the directory made by enter() and fills it.
+     */
+    static void generate(int fileCount, int fileSize, int historyDepth, int branchCount)
+            throws IOException {
+        Random random = new Random(fileCount * 31L + historyDepth);
+        Repository.init();
+        List<String> allPaths = new ArrayList<>();
+        for (int file = 0; file < fileCount; file++) {
+            allPaths.add(path(file));
+            write(path(file), fileSize, random);
+        }
+        Repository.add(allPaths);
+        Repository.commit("Add " + fileCount + " files");
+
+        int changesPerCommit = Math.max(1, fileCount / 100);
+        int forkPoint = historyDepth / 2;
+        for (int depth = 1; depth < historyDepth; depth++) {
+            if (depth == forkPoint) {
+                for (int branch = 0; branch < branchCount; branch++) {
+                    Repository.branch(branchName(branch));
+                }
+            }
+            commitChanges("Commit " + depth, changesPerCommit, fileCount, fileSize, random);
+        }
+        if (forkPoint == 0) {
+            for (int branch = 0; branch < branchCount; branch++) {
+                Repository.branch(branchName(branch));
+            }
+        }
+        for (int branch = 0; branch < branchCount; branch++) {
+            Repository.checkoutBranch(branchName(branch));
+            for (int i = 0; i < COMMITS_PER_BRANCH; i++) {
+                commitChanges("Branch " + branch + " commit " + i, changesPerCommit,
+                        fileCount, fileSize, random);
+            }
+        }
+        Repository.checkoutBranch(MASTER);
+    }
+
+    /**
+     * Rewrites COUNT random files with new content and commits them with MESSAGE.
+     */
+    static void commitChanges(String message, int count, int fileCount, int fileSize,
+                              Random random) throws IOException {
+        Repository.add(rewrite(count, fileCount, fileSize, random));
+        Repository.commit(message);
+    }
+
+    /**
+     * Rewrites COUNT distinct random files with new content and returns their paths.
+     */
+    static List<String> rewrite(int count, int fileCount, int fileSize, Random random)
+            throws IOException {
+        List<String> paths = new ArrayList<>();
+        int first = random.nextInt(fileCount);
+        for (int i = 0; i < Math.min(count, fileCount); i++) {
+            String path = path((first + i) % fileCount);
+            write(path, fileSize, random);
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Writes about SIZE bytes of random lines of text to the working file at PATH.
+     */
+    static void write(String path, int size, Random random) throws IOException {
+        StringBuilder content = new StringBuilder(size + 80);
+        while (content.length() < size) {
+            int words = 1 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                int length = 1 + random.nextInt(8);
+                for (int c = 0; c < length; c++) {
+                    content.append(WORDS.charAt(random.nextInt(WORDS.length())));
+                }
+                content.append(w + 1 < words ? ' ' : '\n');
+            }
+        }
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    /**
+     * Deletes the directory made by enter() with everything in it.
+     */
+    static void delete() throws IOException {
+        if (root == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+        root = null;
+    }
+}
@@ -0,0 +1,52 @@
+package gitlet;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Staging and committing changed files. Every invocation rewrites CHANGEDFILES
+ * files with new content first, so their blobs are never in the store yet.
+ *
+ * @author apotocki
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+public class WriteBenchmarks extends RepositoryState {
+    @Param({"1", "100"})
+    public int changedFiles;
+
+    private final Random random = new Random(42);
+    private List<String> changed;
+
+    @Setup(Level.Invocation)
+    public void changeFiles() throws IOException {
+        changed = SyntheticRepository.rewrite(changedFiles, fileCount, fileSize, random);
+    }
+
+    @Benchmark
+    public void add() {
+        Repository.add(changed);
+    }
+
+    @Benchmark
+    public void addAndCommit() {
+        Repository.add(changed);
+        Repository.commit("Benchmark commit");
+    }
+}
@@ -1,21 +1,100 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
-import static gitlet.Utils.*;
-
+/**
+ * The content of a tracked file. Blobs are kept in the object store as compressed
+ * "blob" objects and are written and read through streams, so a file never has to
+ * be held on the heap as a whole. Instances of this class only come from blobs
+ * stored as serialized objects by older versions of gitlet.
+ */
 public class Blob implements Dumpable {
+    private static final long serialVersionUID = -7908992584057423555L;
     private final String objectType = "blob";
     private final byte[] fileContent;
 
-    public Blob(File file) {
-        fileContent = readContents(file);
-    }
-
     public Blob(byte[] fileContent) {
         this.fileContent = fileContent;
     }
 
+    /**
+     * Returns the id under which the content of FILE is stored in the object store.
+     */
+    public static String getBlobId(File file) {
+        try (InputStream in = openFile(file)) {
+            return ObjectStore.hash(ObjectStore.BLOB, file.length(), in);
+        } catch (IOException e) {
+            throw Utils.error("Cannot read %s: %s", file.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Stores the content of FILE in the object store and returns its id.
+     */
+    public static String save(File file) throws IOException {
+        try (InputStream in = openFile(file)) {
+            return ObjectStore.write(ObjectStore.BLOB, file.length(), in);
+        }
+    }
+
+    /**
+     * Stores CONTENT in the object store and returns its id.
+     */
+    public static String save(byte[] content) throws IOException {
+        return ObjectStore.write(ObjectStore.BLOB, content);
+    }
+
+    /**
+     * Returns a stream over the content of the blob ID.
+     */
+    public static InputStream open(String id) throws IOException {
+        return ObjectStore.open(id, ObjectStore.BLOB);
+    }
+
+    /**
+     * Returns the whole content of the blob ID.
+     */
+    public static byte[] readContents(String id) {
+        try {
+            return ObjectStore.read(id, ObjectStore.BLOB);
+        } catch (IOException e) {
+            throw Utils.error("Cannot read blob %s: %s", id, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the content of the blob ID to TARGET, replacing what was there. The content
+     * is streamed from the object store into the file's channel without being decoded
+     * or held in memory as a whole.
+     */
+    public static void writeTo(String id, File target) throws IOException {
+        try (ObjectStore.ObjectStream in = ObjectStore.open(id, ObjectStore.BLOB);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ReadableByteChannel content = Channels.newChannel(in);
+            long size = in.getSize();
+            for (long written = 0; written < size; ) {
+                long n = out.transferFrom(content, written, size - written);
+                if (n <= 0) {
+                    throw new IOException("Blob " + id + " is truncated");
+                }
+                written += n;
+            }
+        }
+    }
+
+    private static InputStream openFile(File file) throws IOException {
+        return new BufferedInputStream(Files.newInputStream(file.toPath()), ObjectStore.BUFFER_SIZE);
+    }
+
     public String getObjectType() {
         return objectType;
     }
@@ -1,7 +1,14 @@
 package gitlet;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import static gitlet.Utils.*;
 
@@ -12,6 +19,22 @@ import static gitlet.Utils.*;
  * @author apotocki
  */
 public class Commit implements Dumpable {
+    /**
+     * Matches the commits Java-serialized by older versions of gitlet
+     */
+    private static final long serialVersionUID = 365752469089046822L;
+    /**
+     * Version of the text encoding written by encode
+     */
+    private static final int ENCODING_VERSION = 1;
+    private static final int SERIALIZED_MAGIC = 0xaced;
+
+    /**
+     * Format of dates in log entries; thread-safe, unlike SimpleDateFormat
+     */
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE LLL d kk:mm:ss yyyy Z").withZone(ZoneId.systemDefault());
+
     private final String OBJECT_TYPE = "commit";
     /**
      * The message of this Commit.
@@ -33,15 +56,37 @@ public class Commit implements Dumpable {
      */
     private String secondParentId;
 
+    /**
+     * Generation number of this Commit: 1 for the initial commit, otherwise
+     * one more than the highest generation among its parents
+     */
+    private int generation;
+
     /**
      * Author of this Commit
      */
     private final String author;
 
     /**
-     * List of tracked files, identified by their SHA-1 hashes
+     * Id of the root tree of this Commit, or null if it tracks no files
      */
-    private final Map<String, String> trackedFiles;
+    private String treeId;
+
+    /**
+     * List of tracked files, identified by their SHA-1 hashes. Only set in
+     * commits made by older versions of gitlet, before trees were introduced.
+     */
+    private Map<String, String> trackedFiles;
+
+    /**
+     * Tracked files read from the tree of this Commit, once they are needed
+     */
+    private transient Map<String, String> flattenedFiles;
+
+    /**
+     * Id of this Commit, once it was read, written or computed
+     */
+    private transient String id;
 
     public Commit(String msg, String parentID, String author) {
         this.message = msg;
@@ -53,12 +98,152 @@ public class Commit implements Dumpable {
         } else {
             this.timestamp = new Date();
         }
-        this.trackedFiles = new TreeMap<>();
+        this.generation = generationAfter(parentID);
     }
 
     public Commit(String msg, String parentID, String secondParentID, String author) {
         this(msg, parentID, author);
         this.secondParentId = secondParentID;
+        this.generation = Math.max(generation, generationAfter(secondParentID));
+    }
+
+    /**
+     * Returns the generation of a child of the commit PARENTID, or 1 if there
+     * is no such commit. It is taken from the commit graph, because commits
+     * Java-serialized by older versions of gitlet store no generation.
+     */
+    private static int generationAfter(String parentID) {
+        int pos = parentID == null ? CommitGraph.NONE : CommitGraph.getPosition(parentID);
+        return pos == CommitGraph.NONE ? 1 : CommitGraph.getGeneration(pos) + 1;
+    }
+
+    private Commit(String msg, Date timestamp, String parentID, String secondParentID,
+                   String author, String treeId, int generation) {
+        this.message = msg;
+        this.timestamp = timestamp;
+        this.parentId = parentID;
+        this.secondParentId = secondParentID;
+        this.author = author;
+        this.treeId = treeId;
+        this.generation = generation;
+    }
+
+    /**
+     * Returns the encoding of this Commit in the object store: "KEY VALUE" header
+     * lines for the version, tree, parents, author, timestamp in milliseconds and
+     * generation, then an empty line and the message. Fields that are not set,
+     * such as the author of the initial commit, are left out.
+     */
+    byte[] encode() {
+        StringBuilder out = new StringBuilder();
+        out.append("version ").append(ENCODING_VERSION).append('\n');
+        if (treeId != null) {
+            out.append("tree ").append(treeId).append('\n');
+        }
+        if (parentId != null) {
+            out.append("parent ").append(parentId).append('\n');
+        }
+        if (secondParentId != null) {
+            out.append("parent ").append(secondParentId).append('\n');
+        }
+        if (author != null) {
+            out.append("author ").append(author).append('\n');
+        }
+        out.append("timestamp ").append(timestamp.getTime()).append('\n');
+        out.append("generation ").append(generation).append('\n');
+        out.append('\n').append(message);
+        byte[] encoded = out.toString().getBytes(StandardCharsets.UTF_8);
+        Trace.add(Trace.Counter.BYTES_SERIALIZED, encoded.length);
+        return encoded;
+    }
+
+    /**
+     * Returns the Commit with id ID stored as DATA, either by encode or, for
+     * commits made by older versions of gitlet, by Java serialization.
+     */
+    static Commit decode(String id, byte[] data) {
+        Commit commit;
+        if (data.length >= 2 && ((data[0] & 0xff) << 8 | (data[1] & 0xff)) == SERIALIZED_MAGIC) {
+            commit = deserialize(data, Commit.class);
+        } else {
+            Trace.add(Trace.Counter.BYTES_DESERIALIZED, data.length);
+            commit = parse(new String(data, StandardCharsets.UTF_8));
+        }
+        commit.id = id;
+        return commit;
+    }
+
+    private static Commit parse(String text) {
+        String treeId = null;
+        String[] parents = new String[2];
+        int parentCount = 0;
+        String author = null;
+        long timestamp = 0;
+        int generation = 0;
+        int pos = 0;
+        while (true) {
+            int end = text.indexOf('\n', pos);
+            if (end < 0) {
+                throw error("Corrupt commit: missing message");
+            }
+            if (end == pos) {
+                break;
+            }
+            String line = text.substring(pos, end);
+            int space = line.indexOf(' ');
+            String key = space < 0 ? line : line.substring(0, space);
+            String value = space < 0 ? "" : line.substring(space + 1);
+            switch (key) {
+                case "version":
+                    if (Integer.parseInt(value) != ENCODING_VERSION) {
+                        throw error("Unsupported commit version %s", value);
+                    }
+                    break;
+                case "tree":
+                    treeId = value;
+                    break;
+                case "parent":
+                    if (parentCount == parents.length) {
+                        throw error("Corrupt commit: too many parents");
+                    }
+                    parents[parentCount++] = value;
+                    break;
+                case "author":
+                    author = value;
+                    break;
+                case "timestamp":
+                    timestamp = Long.parseLong(value);
+                    break;
+                case "generation":
+                    generation = Integer.parseInt(value);
+                    break;
+                default:
+                    // fields added by later versions are skipped
+                    break;
+            }
+            pos = end + 1;
+        }
+        return new Commit(text.substring(pos + 1), new Date(timestamp), parents[0], parents[1],
+                author, treeId, generation);
+    }
+
+    /**
+     * Returns the id of this Commit. It is the id the commit was read or written
+     * under or, for a commit not yet stored, the hash of its encoding, computed
+     * once.
+     */
+    public String getId() {
+        if (this.id == null) {
+            this.id = ObjectStore.hash(ObjectStore.COMMIT, encode());
+        }
+        return this.id;
+    }
+
+    /**
+     * Records that this Commit was stored under ID.
+     */
+    void setId(String id) {
+        this.id = id;
     }
 
     public String getMessage() {
@@ -77,6 +262,10 @@ public class Commit implements Dumpable {
         return this.secondParentId;
     }
 
+    public int getGeneration() {
+        return this.generation;
+    }
+
     public Commit getParentCommit() {
         if (parentId != null) {
             return getCommitByShaHash(this.parentId);
@@ -95,56 +284,111 @@ public class Commit implements Dumpable {
         return this.author;
     }
 
+    /**
+     * Returns the id of the root tree of this Commit, or null if it has none,
+     * either because it tracks no files or because it predates trees.
+     */
+    public String getTreeId() {
+        return this.treeId;
+    }
+
+    /**
+     * Returns a read-only view of the tracked files. Commits are shared through
+     * the commit cache, so callers that need to modify the map must copy it.
+     */
     public Map<String, String> getTrackedFiles() {
-        return this.trackedFiles;
+        if (this.flattenedFiles == null) {
+            this.flattenedFiles = this.trackedFiles != null
+                    ? canonicalBlobIds(this.trackedFiles) : Tree.flatten(this.treeId);
+        }
+        return Collections.unmodifiableMap(this.flattenedFiles);
     }
 
-    public void setTrackedFiles(Map<String, byte[]> stagingArea) {
-        // Retrieve parent commit if exist
+    /**
+     * Returns FILES with the ids of blobs Java-serialized by older versions of
+     * gitlet replaced by the ids of the same content as "blob" objects, so that
+     * they compare equal to the ids of working files.
+     */
+    private static Map<String, String> canonicalBlobIds(Map<String, String> files) {
+        Map<String, String> canonical = new TreeMap<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            canonical.put(file.getKey(), LegacyBlobs.canonicalId(file.getValue()));
+        }
+        return canonical;
+    }
+
+    public void setTrackedFiles(Map<String, StagingArea.Entry> stagingArea) {
+        // Retrieve parent commit if exist. Files taken from the second parent of a merge
+        // are staged by the merge itself, so only the first parent is inherited.
         Commit parentCommit = getParentCommit();
-        Commit secondParentCommit = getSecondParentCommit();
+        String parentTreeId = null;
+        Map<String, String> changes = new TreeMap<>();
         if (parentCommit != null) {
-            Map<String, String> parentTrackedFiles = parentCommit.getTrackedFiles();
-            this.trackedFiles.putAll(parentTrackedFiles);
-        }
-        if (secondParentCommit != null) {
-            Map<String, String> parentTrackedFiles = secondParentCommit.getTrackedFiles();
-            this.trackedFiles.putAll(parentTrackedFiles);
+            parentTreeId = parentCommit.getTreeId();
+            if (parentCommit.trackedFiles != null) {
+                // A parent without a tree has all its files added to the new one
+                changes.putAll(parentCommit.getTrackedFiles());
+            }
         }
 
-        // Update tracked files with files from staging area
-        TreeMap<String, String> stagingAreaIndex = new TreeMap<>();
-        for (String key : stagingArea.keySet()) {
-            byte[] fileContent = stagingArea.get(key);
+        // Apply the blob ids recorded in the staging area; files staged for removal map to null
+        for (StagingArea.Entry entry : stagingArea.values()) {
+            changes.put(entry.getPath(), entry.isRemoval() ? null : entry.getBlobId());
+        }
+        this.treeId = Tree.update(parentTreeId, changes);
+        this.flattenedFiles = null;
+        this.id = null;
+    }
 
-            // If file is staged for removal, remove reference to it in new commit
-            if (fileContent == null) {
-                this.trackedFiles.remove(key);
-                continue;
+    /**
+     * Returns the files that differ between this Commit and OTHER, mapped to their
+     * {this, other} blob ids, where a missing file has a null id. Subtrees the two
+     * commits share are not read.
+     */
+    public SortedMap<String, String[]> diff(Commit other) {
+        if (this.trackedFiles == null && other.trackedFiles == null) {
+            return Tree.diff(this.treeId, other.treeId);
+        }
+        SortedMap<String, String[]> changes = new TreeMap<>();
+        Map<String, String> files = getTrackedFiles();
+        Map<String, String> otherFiles = other.getTrackedFiles();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            String otherId = otherFiles.get(file.getKey());
+            if (!file.getValue().equals(otherId)) {
+                changes.put(file.getKey(), new String[]{file.getValue(), otherId});
+            }
+        }
+        for (Map.Entry<String, String> file : otherFiles.entrySet()) {
+            if (!files.containsKey(file.getKey())) {
+                changes.put(file.getKey(), new String[]{null, file.getValue()});
             }
-            String fileShaHash = sha1((Object) serialize(new Blob(fileContent)));
-            stagingAreaIndex.put(key, fileShaHash);
         }
-        this.trackedFiles.putAll(stagingAreaIndex);
+        return changes;
     }
 
-    public void log(String id) {
-        String dateFormat = "EEE LLL d kk:mm:ss yyyy Z";
-        SimpleDateFormat sf = new SimpleDateFormat(dateFormat);
-        System.out.println("===");
-        System.out.println("commit " + id);
-        System.out.println("Date: " + sf.format(getTimestamp()));
-        System.out.println(getMessage());
-        System.out.println();
+    /**
+     * Returns the lines of the log entry of the commit ID made at TIMESTAMP with MESSAGE.
+     */
+    public static List<String> logLines(String id, Date timestamp, String message) {
+        List<String> lines = new ArrayList<>();
+        lines.add("===");
+        lines.add("commit " + id);
+        lines.add("Date: " + DATE_FORMAT.format(timestamp.toInstant()));
+        lines.addAll(Arrays.asList(message.split("\n", -1)));
+        lines.add("");
+        return lines;
     }
 
     public void dump() {
         System.out.println("message: " + getMessage());
         System.out.println("parentId: " + getParentId());
+        System.out.println("secondParentId: " + getSecondParentId());
+        System.out.println("generation: " + getGeneration());
         System.out.println("date: " + getTimestamp());
+        System.out.println("tree: " + getTreeId());
         System.out.println("tracked files: ");
-        for (String fileName : getTrackedFiles().keySet()) {
-            System.out.println(fileName + ": " + trackedFiles.get(fileName));
+        for (Map.Entry<String, String> file : getTrackedFiles().entrySet()) {
+            System.out.println(file.getKey() + ": " + file.getValue());
         }
     }
 }
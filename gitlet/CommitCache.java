@@ -0,0 +1,55 @@
+package gitlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, in-process cache of deserialized commits keyed by their full id.
+ * The least recently used commit is evicted once CAPACITY commits are cached.
+ * History walks hit the same commits over and over, so each commit is read from
+ * the object store at most once per invocation as long as it stays cached.
+ *
+ * @author apotocki
+ */
+class CommitCache {
+    /**
+     * Maximum number of commits kept in memory
+     */
+    static final int CAPACITY = 4096;
+
+    private static final Map<String, Commit> CACHE =
+            new LinkedHashMap<>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                    return size() > CAPACITY;
+                }
+            };
+
+    private static long hits = 0;
+    private static long misses = 0;
+
+    /**
+     * Returns the cached commit with the full id ID, or null if it is not cached.
+     */
+    static Commit get(String id) {
+        Commit commit = CACHE.get(id);
+        if (commit == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return commit;
+    }
+
+    static void put(String id, Commit commit) {
+        CACHE.put(id, commit);
+    }
+
+    static long getHits() {
+        return hits;
+    }
+
+    static long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,441 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * A compact, memory-mapped summary of the commit history.
+ * The commit-graph file holds one fixed-size record per commit, in the order the
+ * commits were added, so every parent comes before its children:
+ * <pre>
+ *   id (20 bytes) | parent (int) | second parent (int) | generation (int)
+ *   | timestamp (long) | message offset (long) | message length (int)
+ * </pre>
+ * Parents are stored as positions of other records, or NONE. Messages are kept
+ * as UTF-8 in a separate file. History walks use positions in this file and never
+ * deserialize commit objects. Commits are appended while commit-graph.lock is held,
+ * messages before the records naming them; records and messages left partly written
+ * by an interrupted process are ignored when reading and cut off before the next
+ * append. When the graph is created, every commit in the object
+ * store is added, so it also holds commits no branch reaches any more; commits missing
+ * from it otherwise are added, together with their ancestors, on first lookup.
+ *
+ * @author apotocki
+ */
+class CommitGraph {
+    /**
+     * The commit-graph File
+     */
+    static final File GRAPH = join(Repository.GITLET_DIR, "commit-graph");
+    /**
+     * The File with the messages of the commits in the graph
+     */
+    static final File MESSAGES = join(Repository.GITLET_DIR, "commit-graph-messages");
+    /**
+     * Position used for a parent that does not exist
+     */
+    static final int NONE = -1;
+
+    /**
+     * Magic number at the start of the commit-graph file ("GLCG")
+     */
+    private static final int GRAPH_SIGNATURE = 0x474c4347;
+    /**
+     * Version of the commit-graph format. Version 2 graphs hold every commit in
+     * the object store; version 1 graphs only held commits reachable from refs
+     * looked up so far and are completed when they are loaded.
+     */
+    private static final int GRAPH_VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int ID_SIZE = UID_LENGTH / 2;
+    private static final int RECORD_SIZE = ID_SIZE + 4 + 4 + 4 + 8 + 8 + 4;
+    private static final int PARENT_OFFSET = ID_SIZE;
+    private static final int SECOND_PARENT_OFFSET = PARENT_OFFSET + 4;
+    private static final int GENERATION_OFFSET = SECOND_PARENT_OFFSET + 4;
+    private static final int TIMESTAMP_OFFSET = GENERATION_OFFSET + 4;
+    private static final int MESSAGE_OFFSET = TIMESTAMP_OFFSET + 8;
+    private static final int MESSAGE_LENGTH_OFFSET = MESSAGE_OFFSET + 8;
+
+    private static MappedByteBuffer records;
+    private static MappedByteBuffer messages;
+    private static HashMap<String, Integer> positions;
+    private static int size;
+
+    /**
+     * Maps the graph into memory, creating an empty graph if there is none yet.
+     */
+    private static void load() {
+        if (positions != null) {
+            return;
+        }
+        boolean isNew = !GRAPH.exists();
+        try {
+            if (isNew) {
+                try (DataOutputStream out = new DataOutputStream(new FileOutputStream(GRAPH))) {
+                    out.writeInt(GRAPH_SIGNATURE);
+                    out.writeInt(GRAPH_VERSION);
+                }
+                writeContents(MESSAGES, new byte[0]);
+            }
+            remap();
+        } catch (IOException e) {
+            throw error("Cannot read commit graph: %s", e.getMessage());
+        }
+        int version = records.getInt(4);
+        if (records.getInt(0) != GRAPH_SIGNATURE || version < 1 || version > GRAPH_VERSION) {
+            throw error("Unrecognized commit graph format.");
+        }
+        size = wholeRecords();
+        positions = new HashMap<>(size * 2);
+        for (int pos = 0; pos < size; pos++) {
+            positions.put(getId(pos), pos);
+        }
+        if (version < GRAPH_VERSION || isNew) {
+            addAllCommits();
+        }
+    }
+
+    /**
+     * Adds every commit in the object store that is not in the graph yet,
+     * including commits no branch reaches any more, and marks the graph as
+     * complete. Only needed once per repository.
+     */
+    private static void addAllCommits() {
+        for (String id : ObjectStore.allIds()) {
+            if (positions.containsKey(id)) {
+                continue;
+            }
+            String type;
+            try (ObjectStore.ObjectStream in = ObjectStore.open(id)) {
+                type = in.getType();
+            } catch (IOException e) {
+                throw error("Cannot read object %s: %s", id, e.getMessage());
+            }
+            if (type.equals(ObjectStore.COMMIT)) {
+                addMissing(id);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(GRAPH, "rw")) {
+            // Version 1 graphs stored no generation for commits of older versions of gitlet
+            int[] generations = new int[size];
+            for (int pos = 0; pos < size; pos++) {
+                generations[pos] = getGeneration(pos);
+                if (generations[pos] == 0) {
+                    for (int parent : new int[]{getParent(pos), getSecondParent(pos)}) {
+                        if (parent != NONE) {
+                            generations[pos] = Math.max(generations[pos], generations[parent]);
+                        }
+                    }
+                    generations[pos]++;
+                    raf.seek(recordOffset(pos) + GENERATION_OFFSET);
+                    raf.writeInt(generations[pos]);
+                }
+            }
+            raf.seek(4);
+            raf.writeInt(GRAPH_VERSION);
+        } catch (IOException e) {
+            throw error("Cannot write commit graph: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of records in the mapped graph that were written whole,
+     * along with their messages.
+     */
+    private static int wholeRecords() {
+        int whole = (records.capacity() - HEADER_SIZE) / RECORD_SIZE;
+        while (whole > 0 && messageEnd(whole - 1) > messages.capacity()) {
+            whole--;
+        }
+        return whole;
+    }
+
+    /**
+     * Cuts off the records and messages after the last whole record, which a
+     * process interrupted while appending left behind, so that the next records
+     * are appended right after it. Only called while the graph is locked.
+     */
+    private static void truncatePartialRecords() throws IOException {
+        remap();
+        int whole = wholeRecords();
+        try (RandomAccessFile graph = new RandomAccessFile(GRAPH, "rw");
+             RandomAccessFile messagesFile = new RandomAccessFile(MESSAGES, "rw")) {
+            if (graph.length() != recordOffset(whole)) {
+                graph.setLength(recordOffset(whole));
+            }
+            long messagesEnd = whole > 0 ? messageEnd(whole - 1) : 0;
+            if (messagesFile.length() != messagesEnd) {
+                messagesFile.setLength(messagesEnd);
+            }
+        }
+        remap();
+    }
+
+    /**
+     * Picks up records appended to the graph by other processes since it was mapped,
+     * for processes that keep the graph open across commands.
+     */
+    static void refresh() {
+        if (positions == null) {
+            return;
+        }
+        long length = GRAPH.length();
+        if (length == recordOffset(size)) {
+            return;
+        }
+        if (length < recordOffset(size)) {
+            // The graph was rewritten; map it again from scratch
+            positions = null;
+            return;
+        }
+        try {
+            remap();
+        } catch (IOException e) {
+            throw error("Cannot read commit graph: %s", e.getMessage());
+        }
+        readNewRecords();
+    }
+
+    /**
+     * Adds the positions of the records in the mapped graph past size, or of all
+     * records if the graph was rewritten with fewer.
+     */
+    private static void readNewRecords() {
+        int newSize = wholeRecords();
+        if (newSize < size) {
+            positions.clear();
+            size = 0;
+        }
+        for (int pos = size; pos < newSize; pos++) {
+            positions.put(getId(pos), pos);
+        }
+        size = newSize;
+    }
+
+    private static void remap() throws IOException {
+        records = map(GRAPH);
+        messages = map(MESSAGES);
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Returns the number of commits in the graph.
+     */
+    static int size() {
+        load();
+        return size;
+    }
+
+    /**
+     * Returns the position of the commit with the full id ID, adding it and
+     * its missing ancestors to the graph if needed. Returns NONE if there is
+     * no such commit.
+     */
+    static int getPosition(String id) {
+        load();
+        Integer pos = positions.get(id);
+        if (pos != null) {
+            return pos;
+        }
+        return addMissing(id);
+    }
+
+    /**
+     * Records the newly saved COMMIT with the id ID.
+     */
+    static void add(String id, Commit commit) {
+        load();
+        if (positions.containsKey(id)) {
+            return;
+        }
+        for (String parentId : new String[]{commit.getParentId(), commit.getSecondParentId()}) {
+            if (parentId != null) {
+                getPosition(parentId);
+            }
+        }
+        append(List.of(id), List.of(commit));
+    }
+
+    /**
+     * Appends the commit ID and all of its ancestors that are not in the graph
+     * yet, parents first. Returns the position of ID, or NONE if it does not exist.
+     */
+    private static int addMissing(String id) {
+        List<String> missingIds = new ArrayList<>();
+        List<Commit> missingCommits = new ArrayList<>();
+        Set<String> added = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(id);
+        while (!stack.isEmpty()) {
+            String currId = stack.peek();
+            Commit curr = getCommitByShaHash(currId);
+            if (curr == null) {
+                if (currId.equals(id)) {
+                    return NONE;
+                }
+                throw error("Commit %s is missing from the object store.", currId);
+            }
+            boolean parentsAdded = true;
+            for (String parentId : new String[]{curr.getParentId(), curr.getSecondParentId()}) {
+                if (parentId != null && !positions.containsKey(parentId)
+                        && !added.contains(parentId)) {
+                    stack.push(parentId);
+                    parentsAdded = false;
+                }
+            }
+            if (parentsAdded) {
+                stack.pop();
+                if (added.add(currId)) {
+                    missingIds.add(currId);
+                    missingCommits.add(curr);
+                }
+            }
+        }
+        append(missingIds, missingCommits);
+        return positions.get(id);
+    }
+
+    /**
+     * Appends records for COMMITS with the ids IDS, except those another process
+     * appended since the graph was read. Parents of each commit must either be
+     * in the graph or precede it in COMMITS.
+     */
+    private static void append(List<String> ids, List<Commit> commits) {
+        // The graph may only name commits that are in the object store
+        ObjectStore.flush();
+        try (LockFile lock = new LockFile(GRAPH)) {
+            truncatePartialRecords();
+            readNewRecords();
+            int firstPosition = size;
+            List<Commit> appended = new ArrayList<>();
+            ByteArrayOutputStream newRecords = new ByteArrayOutputStream(ids.size() * RECORD_SIZE);
+            DataOutputStream graphOut = new DataOutputStream(newRecords);
+            try (BufferedOutputStream messagesOut =
+                         new BufferedOutputStream(new FileOutputStream(MESSAGES, true))) {
+                long messageOffset = MESSAGES.length();
+                // Generations of the commits appended, which are not mapped yet
+                HashMap<String, Integer> generations = new HashMap<>();
+                for (int i = 0; i < ids.size(); i++) {
+                    if (positions.containsKey(ids.get(i))) {
+                        continue;
+                    }
+                    Commit commit = commits.get(i);
+                    appended.add(commit);
+                    byte[] message = commit.getMessage().getBytes(StandardCharsets.UTF_8);
+                    int generation = generationOf(commit, generations);
+                    generations.put(ids.get(i), generation);
+                    graphOut.write(fromHex(ids.get(i)));
+                    graphOut.writeInt(positionOfParent(commit.getParentId()));
+                    graphOut.writeInt(positionOfParent(commit.getSecondParentId()));
+                    graphOut.writeInt(generation);
+                    graphOut.writeLong(commit.getTimestamp().getTime());
+                    graphOut.writeLong(messageOffset);
+                    graphOut.writeInt(message.length);
+                    messagesOut.write(message);
+                    messageOffset += message.length;
+                    positions.put(ids.get(i), size);
+                    size++;
+                }
+            }
+            // Only once their messages are written, so no record names a missing message
+            try (FileOutputStream recordsOut = new FileOutputStream(GRAPH, true)) {
+                newRecords.writeTo(recordsOut);
+            }
+            remap();
+            MessageIndex.add(firstPosition, appended);
+        } catch (IOException e) {
+            throw error("Cannot write commit graph: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the generation of COMMIT, whose parents are in the graph or in
+     * APPENDED, the generations of commits being appended with it. Commits
+     * Java-serialized by older versions of gitlet did not record one.
+     */
+    private static int generationOf(Commit commit, HashMap<String, Integer> appended) {
+        if (commit.getGeneration() > 0) {
+            return commit.getGeneration();
+        }
+        int generation = 1;
+        for (String parentId : new String[]{commit.getParentId(), commit.getSecondParentId()}) {
+            if (parentId != null) {
+                Integer parentGeneration = appended.get(parentId);
+                if (parentGeneration == null) {
+                    parentGeneration = getGeneration(positions.get(parentId));
+                }
+                generation = Math.max(generation, parentGeneration + 1);
+            }
+        }
+        return generation;
+    }
+
+    private static int positionOfParent(String parentId) {
+        return parentId == null ? NONE : positions.get(parentId);
+    }
+
+    private static int recordOffset(int pos) {
+        return HEADER_SIZE + pos * RECORD_SIZE;
+    }
+
+    static String getId(int pos) {
+        byte[] rawId = new byte[ID_SIZE];
+        records.get(recordOffset(pos), rawId);
+        return toHex(rawId);
+    }
+
+    static int getParent(int pos) {
+        return records.getInt(recordOffset(pos) + PARENT_OFFSET);
+    }
+
+    static int getSecondParent(int pos) {
+        return records.getInt(recordOffset(pos) + SECOND_PARENT_OFFSET);
+    }
+
+    static int getGeneration(int pos) {
+        return records.getInt(recordOffset(pos) + GENERATION_OFFSET);
+    }
+
+    static Date getTimestamp(int pos) {
+        return new Date(records.getLong(recordOffset(pos) + TIMESTAMP_OFFSET));
+    }
+
+    static String getMessage(int pos) {
+        long offset = records.getLong(recordOffset(pos) + MESSAGE_OFFSET);
+        byte[] message = new byte[records.getInt(recordOffset(pos) + MESSAGE_LENGTH_OFFSET)];
+        messages.get(Math.toIntExact(offset), message);
+        return new String(message, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the offset just past the message of the record at POS.
+     */
+    private static long messageEnd(int pos) {
+        return records.getLong(recordOffset(pos) + MESSAGE_OFFSET)
+                + records.getInt(recordOffset(pos) + MESSAGE_LENGTH_OFFSET);
+    }
+}
@@ -0,0 +1,95 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static gitlet.Utils.*;
+
+/**
+ * Settings of a repository, read from .gitlet/config as KEY=VALUE lines.
+ * A setting can be overridden for a single command through the environment
+ * variable named GITLET_ followed by the key in upper case with dots replaced
+ * by underscores, e.g. GITLET_CORE_THREADS for core.threads.
+ *
+ * @author apotocki
+ */
+public class Config {
+    public static final File CONFIG = join(Repository.GITLET_DIR, "config");
+
+    /**
+     * Number of threads used to hash, compress and write blobs
+     */
+    public static final String THREADS = "core.threads";
+    /**
+     * Whether written files are forced to disk before the refs that reach them move
+     */
+    public static final String FSYNC = "core.fsync";
+    /**
+     * Milliseconds to wait for a ref or the index locked by another process
+     */
+    public static final String LOCK_TIMEOUT = "core.lockTimeout";
+    /**
+     * Fewest hex digits accepted as an abbreviated object id
+     */
+    public static final String MIN_ABBREV = "core.minAbbrev";
+
+    private static Properties properties;
+
+    /**
+     * Returns the value of KEY, or null if it is not set.
+     */
+    public static String get(String key) {
+        String override = System.getenv("GITLET_" + key.toUpperCase().replace('.', '_'));
+        if (override != null) {
+            return override;
+        }
+        if (properties == null) {
+            properties = new Properties();
+            if (CONFIG.exists()) {
+                try (Reader in = Files.newBufferedReader(CONFIG.toPath(), StandardCharsets.UTF_8)) {
+                    properties.load(in);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+        }
+        return properties.getProperty(key);
+    }
+
+    /**
+     * Returns the value of KEY as a positive number, or DEFAULTVALUE if it is
+     * not set or not a positive number.
+     */
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int number = Integer.parseInt(value.trim());
+            return number > 0 ? number : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of KEY as a boolean, or DEFAULTVALUE if it is not set.
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Returns the number of threads to spread work on blobs across, by default
+     * one per available processor.
+     */
+    public static int getThreads() {
+        return getInt(THREADS, Runtime.getRuntime().availableProcessors());
+    }
+}
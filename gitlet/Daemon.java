@@ -0,0 +1,390 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static gitlet.Utils.*;
+
+/**
+ * A long-running process that answers status, add and commit for the repository
+ * in the directory it was started in, so that these commands skip JVM startup and
+ * find commits, trees, packs and the commit graph already in memory.
+ * The working tree is watched with a WatchService: the daemon keeps the list of
+ * working files up to date from file system events and only re-examines files
+ * that changed, so status neither lists directories nor stats unchanged files.
+ * Before each command the daemon creates a cookie file in a watched directory and
+ * waits for its event, after which all changes made before the command started
+ * have been received; if the event does not arrive in time, the working tree is
+ * listed and stat-ed again instead.
+ * Commands reach the daemon over the Unix-domain socket .gitlet/daemon.sock;
+ * when no daemon is listening, Main runs them itself.
+ *
+ * @author apotocki
+ */
+public class Daemon {
+    public static final File SOCKET = join(Repository.GITLET_DIR, "daemon.sock");
+
+    /**
+     * Commands that are sent to a running daemon instead of being run in-process
+     */
+    static final Set<String> FORWARDED = Set.of("status", "add", "commit");
+
+    /**
+     * Directory of the cookie files created before each command
+     */
+    static final File COOKIE_DIR = join(Repository.GITLET_DIR, "daemon-cookies");
+    /**
+     * Milliseconds to wait for the event of a cookie file
+     */
+    private static final long SYNC_TIMEOUT = 200;
+
+    private final WatchService watchService;
+    /**
+     * Watched directories, by watch key, as path prefixes relative to CWD
+     */
+    private final Map<WatchKey, String> watchedDirs = new HashMap<>();
+    /**
+     * Paths of all working files that are not ignored
+     */
+    private final NavigableSet<String> files = new ConcurrentSkipListSet<>();
+    /**
+     * Paths of working files that may have changed since their content was last verified
+     */
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private WatchKey cookieKey;
+    private long cookieCount;
+    private WorkingTree workingTree;
+    private boolean running = true;
+
+    private Daemon(WatchService watchService) {
+        this.watchService = watchService;
+    }
+
+    /**
+     * Sends the command ARGS to the running daemon and copies its output to
+     * System.out. Returns false, without running the command, if no daemon is
+     * listening.
+     */
+    public static boolean forward(String[] args) {
+        if (!SOCKET.exists()) {
+            return false;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET.toPath()));
+        } catch (IOException e) {
+            // A socket left behind by a daemon that did not shut down cleanly
+            return false;
+        }
+        try (channel) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            channel.shutdownOutput();
+            Channels.newInputStream(channel).transferTo(System.out);
+            System.out.flush();
+        } catch (IOException e) {
+            System.out.println("Lost connection to the daemon: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Runs the daemon until it receives a "daemon stop" command.
+     */
+    public static void run() {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            System.out.println("Not in an initialized Gitlet directory.");
+            return;
+        }
+        if (SOCKET.exists()) {
+            try (SocketChannel channel =
+                         SocketChannel.open(UnixDomainSocketAddress.of(SOCKET.toPath()))) {
+                System.out.println("A daemon is already running.");
+                return;
+            } catch (IOException e) {
+                SOCKET.delete();
+            }
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET.toPath()));
+            Daemon daemon = new Daemon(watchService);
+            COOKIE_DIR.mkdir();
+            daemon.cookieKey = COOKIE_DIR.toPath().register(watchService, ENTRY_CREATE);
+            daemon.scan();
+            WorkingTree.useSnapshot(daemon.new WatchedFiles());
+            StatCache.keepResident();
+            while (daemon.running) {
+                try (SocketChannel client = server.accept()) {
+                    daemon.serve(client);
+                } catch (IOException e) {
+                    // Only this client is affected, e.g. one that disconnected early
+                    System.out.println("Failed to serve a command: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            SOCKET.delete();
+        }
+    }
+
+    /**
+     * Reads one command from CLIENT, runs it and sends its output back.
+     */
+    private void serve(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(client)));
+        String[] args;
+        try {
+            args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+        } catch (EOFException e) {
+            // A client that only checked whether the daemon is running
+            return;
+        }
+        try {
+            processEvents();
+        } catch (IOException e) {
+            // Events may have been lost; listing everything again makes up for them
+            scan();
+        }
+        CommitGraph.refresh();
+        Pack.refresh();
+
+        PrintStream stdout = System.out;
+        PrintStream out = new PrintStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)),
+                false, StandardCharsets.UTF_8);
+        System.setOut(out);
+        try {
+            if (args[0].equals("daemon")) {
+                running = false;
+                System.out.println("Daemon stopped.");
+            } else {
+                Main.run(args);
+            }
+        } catch (RuntimeException e) {
+            // A failed command must not take the daemon down with it
+            System.out.println(e.getMessage());
+        } finally {
+            out.flush();
+            System.setOut(stdout);
+        }
+    }
+
+    /**
+     * Forgets all watched directories and files, then lists the working tree again.
+     */
+    private void scan() throws IOException {
+        for (WatchKey key : watchedDirs.keySet()) {
+            key.cancel();
+        }
+        watchedDirs.clear();
+        files.clear();
+        dirty.clear();
+        workingTree = WorkingTree.load();
+        register(Repository.CWD.toPath(), "");
+    }
+
+    /**
+     * Watches the directory DIR, at PATHPREFIX, and adds everything in it.
+     */
+    private void register(Path dir, String pathPrefix) throws IOException {
+        try {
+            watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY),
+                    pathPrefix);
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    added(child, pathPrefix + child.getFileName());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Already removed again; its deletion event follows
+        }
+    }
+
+    /**
+     * Adds the new file or directory FILE at PATH, unless it is ignored.
+     */
+    private void added(Path file, String path) throws IOException {
+        if (path.equals(".gitlet")) {
+            return;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            // Already gone again; its deletion event follows
+            return;
+        }
+        if (attributes.isDirectory()) {
+            if (!workingTree.isIgnored(path, true)) {
+                register(file, path + "/");
+            }
+        } else if (attributes.isRegularFile() && !workingTree.isIgnored(path, false)) {
+            files.add(path);
+            dirty.add(path);
+        }
+    }
+
+    /**
+     * Applies all file system events for changes made before this call. A cookie
+     * file is created and events are applied until its own event arrives, which
+     * the watch service delivers after those of all earlier changes. If it does
+     * not arrive within SYNC_TIMEOUT, the working tree is scanned again, so that
+     * every file is stat-ed rather than trusted.
+     */
+    private void processEvents() throws IOException {
+        String cookie = "cookie-" + ProcessHandle.current().pid() + "-" + (++cookieCount);
+        File cookieFile = join(COOKIE_DIR, cookie);
+        boolean synced = false;
+        boolean rescan = false;
+        try {
+            Files.createFile(cookieFile.toPath());
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+            while (!synced) {
+                long left = deadline - System.currentTimeMillis();
+                WatchKey key = left > 0 ? watchService.poll(left, TimeUnit.MILLISECONDS) : null;
+                if (key == null) {
+                    break;
+                }
+                if (key == cookieKey) {
+                    synced = receivedCookie(key, cookie);
+                } else {
+                    rescan |= applyEvents(key);
+                }
+            }
+            for (WatchKey key = watchService.poll(); key != null; key = watchService.poll()) {
+                if (key == cookieKey) {
+                    synced |= receivedCookie(key, cookie);
+                } else {
+                    rescan |= applyEvents(key);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Not synced; the scan below stats every file
+        } finally {
+            Files.deleteIfExists(cookieFile.toPath());
+        }
+        if (rescan || !synced) {
+            scan();
+        }
+    }
+
+    /**
+     * Takes the events of the cookie directory's KEY and returns whether one of
+     * them is the creation of the cookie file COOKIE.
+     */
+    private boolean receivedCookie(WatchKey key, String cookie) {
+        boolean received = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == ENTRY_CREATE && event.context().toString().equals(cookie)) {
+                received = true;
+            }
+        }
+        key.reset();
+        return received;
+    }
+
+    /**
+     * Applies the events of the watched directory's KEY. Returns whether the
+     * working tree has to be scanned again.
+     */
+    private boolean applyEvents(WatchKey key) throws IOException {
+        boolean rescan = false;
+        String pathPrefix = watchedDirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                rescan = true;
+                continue;
+            }
+            if (pathPrefix == null) {
+                continue;
+            }
+            Path name = (Path) event.context();
+            String path = pathPrefix + name;
+            if (path.equals(WorkingTree.IGNORE_FILE.getName())) {
+                rescan = true;
+            }
+            if (event.kind() == ENTRY_CREATE) {
+                added(((Path) key.watchable()).resolve(name), path);
+            } else if (event.kind() == ENTRY_DELETE) {
+                files.remove(path);
+                dirty.remove(path);
+                files.subSet(path + "/", path + "/\uffff").clear();
+            } else if (files.contains(path)) {
+                dirty.add(path);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirs.remove(key);
+        }
+        return rescan;
+    }
+
+    /**
+     * The working files as seen by this daemon.
+     */
+    private class WatchedFiles implements WorkingTree.Snapshot {
+        @Override
+        public void forEachFile(Consumer<String> consumer) {
+            ForkJoinPool pool = new ForkJoinPool(Config.getThreads());
+            try {
+                pool.submit(() -> files.parallelStream().forEach(consumer)).join();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        @Override
+        public boolean isUnchanged(String path) {
+            return files.contains(path) && !dirty.contains(path);
+        }
+
+        @Override
+        public void markVerified(String path) {
+            dirty.remove(path);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Delta compression of one object against another, used by packfiles.
+ * A delta starts with the sizes of the base and the result, followed by
+ * instructions that either insert literal bytes or copy a range of the base:
+ * <pre>
+ *   INSERT length bytes...
+ *   COPY   offset length
+ * </pre>
+ * All numbers are unsigned variable-length integers.
+ *
+ * @author apotocki
+ */
+class Delta {
+    private static final int INSERT = 0;
+    private static final int COPY = 1;
+    /**
+     * Length of the blocks of the base that are indexed; shorter matches are not copied
+     */
+    private static final int BLOCK = 16;
+
+    /**
+     * A hash table of the BLOCK-sized blocks of a base, so that several targets
+     * can be compared against the same base without indexing it again.
+     */
+    static class Index {
+        private final byte[] base;
+        private final int[] table;
+        private final int mask;
+
+        Index(byte[] base) {
+            this.base = base;
+            int capacity = Integer.highestOneBit(Math.max(base.length / BLOCK, 8)) * 4;
+            this.table = new int[capacity];
+            this.mask = capacity - 1;
+            for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+                table[hash(base, offset) & mask] = offset + 1;
+            }
+        }
+
+        private int candidate(byte[] target, int offset) {
+            return table[hash(target, offset) & mask] - 1;
+        }
+    }
+
+    /**
+     * Returns a delta that turns the base of INDEX into TARGET, or null if the
+     * delta would be longer than MAXSIZE bytes.
+     */
+    static byte[] create(Index index, byte[] target, int maxSize) {
+        byte[] base = index.base;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        int insertStart = 0;
+        int pos = 0;
+        while (pos + BLOCK <= target.length) {
+            int candidate = index.candidate(target, pos);
+            if (candidate < 0 || !sameBlock(base, candidate, target, pos)) {
+                pos++;
+                continue;
+            }
+            int start = pos;
+            int baseStart = candidate;
+            while (start > insertStart && baseStart > 0
+                    && base[baseStart - 1] == target[start - 1]) {
+                start--;
+                baseStart--;
+            }
+            int end = pos + BLOCK;
+            int baseEnd = candidate + BLOCK;
+            while (end < target.length && baseEnd < base.length && base[baseEnd] == target[end]) {
+                end++;
+                baseEnd++;
+            }
+            writeInsert(out, target, insertStart, start);
+            out.write(COPY);
+            writeVarint(out, baseStart);
+            writeVarint(out, end - start);
+            if (out.size() > maxSize) {
+                return null;
+            }
+            pos = end;
+            insertStart = end;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.size() > maxSize ? null : out.toByteArray();
+    }
+
+    /**
+     * Returns the result of applying DELTA to BASE.
+     */
+    static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        InputStream in = new ByteArrayInputStream(delta);
+        if (readVarint(in) != base.length) {
+            throw new IOException("Delta does not match its base");
+        }
+        byte[] result = new byte[(int) readVarint(in)];
+        int resultPos = 0;
+        for (int op = in.read(); op != -1; op = in.read()) {
+            if (op == INSERT) {
+                int length = (int) readVarint(in);
+                if (in.read(result, resultPos, length) != length) {
+                    throw new IOException("Truncated delta");
+                }
+                resultPos += length;
+            } else if (op == COPY) {
+                int offset = (int) readVarint(in);
+                int length = (int) readVarint(in);
+                System.arraycopy(base, offset, result, resultPos, length);
+                resultPos += length;
+            } else {
+                throw new IOException("Corrupt delta");
+            }
+        }
+        if (resultPos != result.length) {
+            throw new IOException("Truncated delta");
+        }
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static boolean sameBlock(byte[] base, int baseOffset, byte[] target, int offset) {
+        for (int i = 0; i < BLOCK; i++) {
+            if (base[baseOffset + i] != target[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            h = 31 * h + data[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Writes VALUE to OUT as an unsigned variable-length integer, 7 bits per byte.
+     */
+    static void writeVarint(OutputStream out, long value) {
+        try {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads an unsigned variable-length integer written by writeVarint from IN.
+     */
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Truncated number");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line diffs with Myers' O(ND) algorithm, in its linear space variant that
+ * recurses on the middle snake. Lines are compared by the ids a LineInterner
+ * gives them, so the diff itself never touches their content.
+ *
+ * @author apotocki
+ */
+class Diff {
+    /**
+     * Unchanged lines shown around each change in unified output
+     */
+    private static final int CONTEXT = 3;
+
+    /**
+     * A region where lines BEGINA up to ENDA of the old sequence were replaced
+     * by lines BEGINB up to ENDB of the new one. Either range may be empty.
+     */
+    static class Edit {
+        final int beginA;
+        final int endA;
+        final int beginB;
+        final int endB;
+
+        Edit(int beginA, int endA, int beginB, int endB) {
+            this.beginA = beginA;
+            this.endA = endA;
+            this.beginB = beginB;
+            this.endB = endB;
+        }
+    }
+
+    /**
+     * Gives each distinct line an int id. Lines are looked up by hash and
+     * checked byte by byte; a line whose hash collides with a different line
+     * gets an id of its own that nothing else will match.
+     */
+    static class LineInterner {
+        private final Map<Long, Integer> byHash = new HashMap<>();
+        private final List<Lines> sources = new ArrayList<>();
+        private int[] lines = new int[64];
+
+        int intern(Lines source, int line) {
+            Integer id = byHash.get(source.hash(line));
+            if (id != null && sources.get(id).sameLine(lines[id], source, line)) {
+                return id;
+            }
+            int newId = sources.size();
+            sources.add(source);
+            if (newId == lines.length) {
+                lines = Arrays.copyOf(lines, newId * 2);
+            }
+            lines[newId] = line;
+            if (id == null) {
+                byHash.put(source.hash(line), newId);
+            }
+            return newId;
+        }
+    }
+
+    /**
+     * Returns the edits that turn the lines A into the lines B, in order.
+     */
+    static List<Edit> diff(int[] a, int[] b) {
+        List<Edit> edits = new ArrayList<>();
+        int size = 2 * (a.length + b.length) + 3;
+        new Diff(a, b, size).compare(0, a.length, 0, b.length, edits);
+        List<Edit> merged = new ArrayList<>(edits.size());
+        for (Edit edit : edits) {
+            Edit last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last.endA == edit.beginA && last.endB == edit.beginB) {
+                merged.set(merged.size() - 1, new Edit(last.beginA, edit.endA, last.beginB, edit.endB));
+            } else {
+                merged.add(edit);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Writes the unified diff of the file PATH from OLDLINES to NEWLINES to OUT,
+     * with CONTEXT unchanged lines around each change. OLDEXISTS and NEWEXISTS
+     * tell whether the file exists on each side.
+     */
+    static void writeUnified(String path, Lines oldLines, boolean oldExists,
+                             Lines newLines, boolean newExists, OutputStream out)
+            throws IOException {
+        writeLine(out, "diff --git a/" + path + " b/" + path);
+        if (!oldExists) {
+            writeLine(out, "new file mode 100644");
+        } else if (!newExists) {
+            writeLine(out, "deleted file mode 100644");
+        }
+        if (oldLines.isBinary() || newLines.isBinary()) {
+            writeLine(out, "Binary files " + (oldExists ? "a/" + path : "/dev/null") + " and "
+                    + (newExists ? "b/" + path : "/dev/null") + " differ");
+            return;
+        }
+        LineInterner interner = new LineInterner();
+        List<Edit> edits = diff(oldLines.ids(interner), newLines.ids(interner));
+        if (edits.isEmpty()) {
+            return;
+        }
+        writeLine(out, "--- " + (oldExists ? "a/" + path : "/dev/null"));
+        writeLine(out, "+++ " + (newExists ? "b/" + path : "/dev/null"));
+        int first = 0;
+        while (first < edits.size()) {
+            int last = first;
+            while (last + 1 < edits.size()
+                    && edits.get(last + 1).beginA - edits.get(last).endA <= 2 * CONTEXT) {
+                last++;
+            }
+            Edit firstEdit = edits.get(first);
+            Edit lastEdit = edits.get(last);
+            int aStart = Math.max(0, firstEdit.beginA - CONTEXT);
+            int aEnd = Math.min(oldLines.size(), lastEdit.endA + CONTEXT);
+            int bStart = firstEdit.beginB - (firstEdit.beginA - aStart);
+            int bEnd = lastEdit.endB + (aEnd - lastEdit.endA);
+            writeLine(out, "@@ -" + range(aStart, aEnd) + " +" + range(bStart, bEnd) + " @@");
+            int a = aStart;
+            for (int i = first; i <= last; i++) {
+                Edit edit = edits.get(i);
+                writeLines(out, ' ', oldLines, a, edit.beginA);
+                writeLines(out, '-', oldLines, edit.beginA, edit.endA);
+                writeLines(out, '+', newLines, edit.beginB, edit.endB);
+                a = edit.endA;
+            }
+            writeLines(out, ' ', oldLines, a, aEnd);
+            first = last + 1;
+        }
+    }
+
+    private static String range(int start, int end) {
+        if (end - start == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (end == start ? start : start + 1) + "," + (end - start);
+    }
+
+    private static void writeLines(OutputStream out, char prefix, Lines lines, int from, int to)
+            throws IOException {
+        for (int line = from; line < to; line++) {
+            out.write(prefix);
+            lines.write(out, line, line + 1);
+        }
+        if (from < to && to == lines.size() && !lines.endsWithNewline()) {
+            writeLine(out, "");
+            writeLine(out, "\\ No newline at end of file");
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    private final int[] a;
+    private final int[] b;
+    /**
+     * Furthest x reached on each diagonal k, at index k + center, going forward
+     * from the start and backward from the end of the current subproblem
+     */
+    private final int[] forward;
+    private final int[] backward;
+    private final int center;
+
+    private Diff(int[] a, int[] b, int size) {
+        this.a = a;
+        this.b = b;
+        this.forward = new int[size];
+        this.backward = new int[size];
+        this.center = size / 2;
+    }
+
+    private void compare(int aLo, int aHi, int bLo, int bHi, List<Edit> edits) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            if (aLo < aHi || bLo < bHi) {
+                edits.add(new Edit(aLo, aHi, bLo, bHi));
+            }
+            return;
+        }
+        int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+        compare(aLo, snake[0], bLo, snake[1], edits);
+        compare(snake[2], aHi, snake[3], bHi, edits);
+    }
+
+    /**
+     * Returns the start and end {x, y, u, v} of the middle snake of a shortest
+     * edit script between a[ALO..AHI) and b[BLO..BHI), both non-empty.
+     */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        forward[center + 1] = 0;
+        backward[center + 1] = 0;
+        for (int d = 0; d <= (n + m + 1) / 2; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && forward[center + k - 1] < forward[center + k + 1])) {
+                    x = forward[center + k + 1];
+                } else {
+                    x = forward[center + k - 1] + 1;
+                }
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[center + k] = x;
+                if (odd && k >= delta - (d - 1) && k <= delta + (d - 1)
+                        && x + backward[center + delta - k] >= n) {
+                    return new int[]{aLo + startX, bLo + startY, aLo + x, bLo + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && backward[center + k - 1] < backward[center + k + 1])) {
+                    x = backward[center + k + 1];
+                } else {
+                    x = backward[center + k - 1] + 1;
+                }
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[center + k] = x;
+                if (!odd && delta - k >= -d && delta - k <= d
+                        && forward[center + delta - k] + x >= n) {
+                    return new int[]{aHi - x, bHi - y, aHi - startX, bHi - startY};
+                }
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+}
@@ -0,0 +1,74 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * The ids of blobs Java-serialized by older versions of gitlet, mapped to the
+ * ids of the same content as "blob" objects, so that files tracked by old
+ * commits compare equal to working files. Each old blob is converted once:
+ * its content is stored as a blob object and the pair of ids is appended to
+ * the legacy-blobs file as a line "OLDID ID". gc converts the blobs of all
+ * old commits.
+ *
+ * @author apotocki
+ */
+class LegacyBlobs {
+    /**
+     * The legacy-blobs File
+     */
+    static final File FILE = join(Repository.GITLET_DIR, "legacy-blobs");
+
+    private static HashMap<String, String> converted;
+
+    /**
+     * Returns the id of the blob object with the content of the old blob
+     * LEGACYID, converting it if that was not done yet.
+     */
+    static synchronized String canonicalId(String legacyId) {
+        load();
+        String blobId = converted.get(legacyId);
+        if (blobId != null) {
+            return blobId;
+        }
+        try (ObjectStore.ObjectStream in = ObjectStore.open(legacyId, ObjectStore.BLOB)) {
+            byte[] content = in.readAllBytes();
+            blobId = ObjectStore.hash(ObjectStore.BLOB, content);
+            if (!ObjectStore.exists(blobId)) {
+                Blob.save(content);
+            }
+            // The blob must be stored before a line names it
+            ObjectStore.flush();
+            try (FileOutputStream out = new FileOutputStream(FILE, true)) {
+                out.write((legacyId + " " + blobId + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw error("Cannot read blob %s: %s", legacyId, e.getMessage());
+        }
+        converted.put(legacyId, blobId);
+        return blobId;
+    }
+
+    private static void load() {
+        if (converted != null) {
+            return;
+        }
+        converted = new HashMap<>();
+        if (!FILE.isFile()) {
+            return;
+        }
+        String contents = readContentsAsString(FILE);
+        // A line cut short by an interrupted process is converted again
+        for (int start = 0, end; (end = contents.indexOf('\n', start)) >= 0; start = end + 1) {
+            String[] ids = contents.substring(start, end).split(" ");
+            if (ids.length == 2) {
+                converted.put(ids[0], ids[1]);
+            }
+        }
+    }
+}
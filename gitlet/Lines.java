@@ -0,0 +1,199 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The lines of a blob, for diffing and merging. Small blobs are read onto the
+ * heap; larger ones are copied to a temporary file and memory-mapped, so that
+ * only the offset and hash of each line are held in memory. A line includes
+ * its terminating '\n', if it has one.
+ *
+ * @author apotocki
+ */
+class Lines implements AutoCloseable {
+    /**
+     * Blobs up to this size are read onto the heap
+     */
+    private static final int IN_MEMORY_LIMIT = 1024 * 1024;
+    private static final int BINARY_CHECK_LENGTH = 8000;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    static final Lines EMPTY = new Lines(ByteBuffer.allocate(0), new int[]{0}, new long[0], 0, null);
+
+    private final ByteBuffer content;
+    /**
+     * Offset of the start of each line, followed by the length of the content
+     */
+    private final int[] starts;
+    private final long[] hashes;
+    private final int count;
+    private final Path tempFile;
+    private int[] ids;
+
+    private Lines(ByteBuffer content, int[] starts, long[] hashes, int count, Path tempFile) {
+        this.content = content;
+        this.starts = starts;
+        this.hashes = hashes;
+        this.count = count;
+        this.tempFile = tempFile;
+    }
+
+    /**
+     * Returns the lines of the blob ID, or no lines if ID is null.
+     */
+    static Lines read(String id) throws IOException {
+        if (id == null) {
+            return EMPTY;
+        }
+        ByteBuffer content;
+        Path tempFile = null;
+        try (ObjectStore.ObjectStream in = ObjectStore.open(id, ObjectStore.BLOB)) {
+            if (in.getSize() > Integer.MAX_VALUE) {
+                throw new IOException("Blob " + id + " is too large to diff");
+            }
+            if (in.getSize() <= IN_MEMORY_LIMIT) {
+                content = ByteBuffer.wrap(in.readAllBytes());
+            } else {
+                tempFile = Files.createTempFile("gitlet-lines", null);
+                content = map(in, tempFile);
+            }
+        }
+        return split(content, tempFile);
+    }
+
+    /**
+     * Returns the lines of the working file FILE. Files larger than the heap
+     * limit are mapped in place.
+     */
+    static Lines read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file.getName() + " is too large to diff");
+            }
+            if (channel.size() <= IN_MEMORY_LIMIT) {
+                return split(ByteBuffer.wrap(Files.readAllBytes(file.toPath())), null);
+            }
+            return split(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), null);
+        }
+    }
+
+    private static ByteBuffer map(InputStream in, Path tempFile) throws IOException {
+        Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(tempFile)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static Lines split(ByteBuffer content, Path tempFile) {
+        int length = content.limit();
+        int[] starts = new int[16];
+        long[] hashes = new long[16];
+        int count = 0;
+        long hash = FNV_OFFSET;
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = content.get(i);
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+            if (b == '\n' || i == length - 1) {
+                if (count + 1 >= starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                    hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                }
+                starts[count] = start;
+                hashes[count] = hash;
+                count++;
+                start = i + 1;
+                hash = FNV_OFFSET;
+            }
+        }
+        starts[count] = length;
+        return new Lines(content, starts, hashes, count, tempFile);
+    }
+
+    int size() {
+        return count;
+    }
+
+    long hash(int line) {
+        return hashes[line];
+    }
+
+    /**
+     * Returns whether LINE has the same bytes as the line OTHERLINE of OTHER.
+     */
+    boolean sameLine(int line, Lines other, int otherLine) {
+        int length = starts[line + 1] - starts[line];
+        if (length != other.starts[otherLine + 1] - other.starts[otherLine]) {
+            return false;
+        }
+        return content.slice(starts[line], length)
+                .equals(other.content.slice(other.starts[otherLine], length));
+    }
+
+    /**
+     * Returns the ids of all lines, as assigned by INTERNER: two lines of blobs
+     * interned by the same interner have equal ids only if they are equal.
+     */
+    int[] ids(Diff.LineInterner interner) {
+        if (ids == null) {
+            ids = new int[count];
+            for (int line = 0; line < count; line++) {
+                ids[line] = interner.intern(this, line);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns whether the content looks binary: a NUL byte in its first 8000 bytes.
+     */
+    boolean isBinary() {
+        int end = Math.min(starts[count], BINARY_CHECK_LENGTH);
+        for (int i = 0; i < end; i++) {
+            if (content.get(i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the last line ends with '\n'; true if there are no lines.
+     */
+    boolean endsWithNewline() {
+        return count == 0 || content.get(starts[count] - 1) == '\n';
+    }
+
+    /**
+     * Writes the lines FROM up to TO to OUT.
+     */
+    void write(OutputStream out, int from, int to) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        ByteBuffer range = content.slice(starts[from], starts[to] - starts[from]);
+        byte[] buffer = new byte[Math.min(range.remaining(), ObjectStore.BUFFER_SIZE)];
+        while (range.hasRemaining()) {
+            int n = Math.min(buffer.length, range.remaining());
+            range.get(buffer, 0, n);
+            out.write(buffer, 0, n);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (tempFile != null) {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
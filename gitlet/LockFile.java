@@ -0,0 +1,111 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static gitlet.Utils.*;
+
+/**
+ * An update of a repository file, such as a ref or the index, that is either
+ * seen whole or not at all. The new content is written to FILE.lock, which
+ * only one process can create at a time, and is then renamed over FILE.
+ * A lock that is closed without being committed is deleted, leaving FILE as
+ * it was. Locks are held briefly, so a process that finds FILE locked retries
+ * with growing, randomized delays for up to core.lockTimeout milliseconds.
+ *
+ * @author apotocki
+ */
+class LockFile implements AutoCloseable {
+    /**
+     * Milliseconds to keep retrying a lock held by another process
+     */
+    private static final int DEFAULT_TIMEOUT = 1000;
+    /**
+     * Longest delay between two attempts to take a lock, in milliseconds
+     */
+    private static final int MAX_BACKOFF = 64;
+
+    private final File target;
+    private final Path lock;
+    private OutputStream out;
+    private boolean committed;
+
+    /**
+     * Locks TARGET. Throws a GitletException if another process still holds
+     * its lock after core.lockTimeout milliseconds.
+     */
+    LockFile(File target) {
+        this.target = target;
+        this.lock = new File(target.getPath() + ".lock").toPath();
+        long deadline = System.currentTimeMillis()
+                + Config.getInt(Config.LOCK_TIMEOUT, DEFAULT_TIMEOUT);
+        int backoff = 1;
+        while (true) {
+            try {
+                out = new BufferedOutputStream(Files.newOutputStream(lock,
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+                return;
+            } catch (FileAlreadyExistsException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw error("Unable to lock %s: %s exists. Another gitlet process may be running;"
+                            + " if not, remove the file.", target.getName(), lock);
+                }
+            } catch (IOException e) {
+                throw error("Unable to lock %s: %s", target.getName(), e.getMessage());
+            }
+            try {
+                // Randomized, so that processes waiting for the same lock spread out
+                Thread.sleep(ThreadLocalRandom.current().nextInt(backoff) + 1);
+            } catch (InterruptedException e) {
+                throw error("Interrupted while waiting to lock %s", target.getName());
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * Returns the stream the new content of the file is written to.
+     */
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Replaces the file with the content written, forcing it to disk first.
+     */
+    void commit() throws IOException {
+        out.close();
+        fsync(List.of(lock));
+        Files.move(lock, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        fsyncParents(List.of(target.toPath()));
+    }
+
+    /**
+     * Replaces the file with CONTENTS, Strings in UTF-8.
+     */
+    void commit(String... contents) throws IOException {
+        for (String content : contents) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        commit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            out.close();
+            Files.deleteIfExists(lock);
+        }
+    }
+}
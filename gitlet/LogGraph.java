@@ -0,0 +1,122 @@
+package gitlet;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Draws the commit graph to the left of log entries, one column (lane) per
+ * line of history that is still open. Commits must come in the order of a
+ * LogWalk over all parents, so that every commit comes before its parents.
+ *
+ * @author apotocki
+ */
+class LogGraph {
+    /**
+     * The commit each open lane leads to next
+     */
+    private final List<Integer> lanes = new ArrayList<>();
+
+    /**
+     * Prints the log entry LINES of the commit at POS to OUT with the graph
+     * drawn next to them, or with PRINT false only moves the lanes past it.
+     */
+    void print(PrintWriter out, int pos, List<String> lines, boolean print) {
+        int col = lanes.indexOf(pos);
+        if (col < 0) {
+            lanes.add(pos);
+            col = lanes.size() - 1;
+        }
+        // Lanes of other children of this commit join its own lane
+        if (lanes.lastIndexOf(pos) != col) {
+            List<Integer> joined = new ArrayList<>(lanes);
+            joined.removeIf(lane -> lane == pos);
+            joined.add(col, pos);
+            int[][] edges = new int[lanes.size()][];
+            for (int i = 0; i < lanes.size(); i++) {
+                edges[i] = new int[]{i, joined.indexOf(lanes.get(i))};
+            }
+            if (print) {
+                printEdges(out, edges);
+            }
+            lanes.clear();
+            lanes.addAll(joined);
+        }
+
+        int parent = CommitGraph.getParent(pos);
+        int secondParent = CommitGraph.getSecondParent(pos);
+        if (print) {
+            for (int i = 0; i < lines.size(); i++) {
+                char self = i == 0 ? '*' : parent != CommitGraph.NONE ? '|' : ' ';
+                String prefix = prefix(col, self);
+                out.println(lines.get(i).isEmpty() ? prefix.stripTrailing() : prefix + lines.get(i));
+            }
+        }
+
+        List<Integer> next = new ArrayList<>(lanes);
+        boolean continues = parent != CommitGraph.NONE && !lanes.contains(parent);
+        if (continues) {
+            next.set(col, parent);
+        } else {
+            next.remove(col);
+        }
+        if (secondParent != CommitGraph.NONE && !next.contains(secondParent)) {
+            next.add(continues ? col + 1 : col, secondParent);
+        }
+        List<int[]> edges = new ArrayList<>();
+        boolean moved = next.size() != lanes.size();
+        for (int i = 0; i < lanes.size(); i++) {
+            if (i != col) {
+                int target = next.indexOf(lanes.get(i));
+                edges.add(new int[]{i, target});
+                moved |= target != i;
+            }
+        }
+        for (int p : new int[]{parent, secondParent}) {
+            if (p != CommitGraph.NONE) {
+                int target = next.indexOf(p);
+                edges.add(new int[]{col, target});
+                moved |= target != col;
+            }
+        }
+        if (print && moved && !edges.isEmpty()) {
+            printEdges(out, edges.toArray(new int[0][]));
+        }
+        lanes.clear();
+        lanes.addAll(next);
+    }
+
+    private String prefix(int col, char self) {
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < lanes.size(); i++) {
+            prefix.append(i == col ? self : '|').append(' ');
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Prints a row of lines from the lanes before it to the lanes after it, each
+     * edge {FROM, TO} drawn as '|', '\' or '/'.
+     */
+    private static void printEdges(PrintWriter out, int[][] edges) {
+        int width = 0;
+        for (int[] edge : edges) {
+            width = Math.max(width, Math.max(edge[0], edge[1]) + 1);
+        }
+        char[] row = new char[2 * width];
+        Arrays.fill(row, ' ');
+        for (int[] edge : edges) {
+            int from = edge[0];
+            int to = edge[1];
+            if (to == from) {
+                row[2 * from] = '|';
+            } else if (to > from) {
+                row[2 * from + 1] = '\\';
+            } else {
+                row[2 * from - 1] = '/';
+            }
+        }
+        out.println(new String(row).stripTrailing());
+    }
+}
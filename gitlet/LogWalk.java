@@ -0,0 +1,60 @@
+package gitlet;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+
+/**
+ * A lazy walk over the commit graph from one commit, yielding commit-graph
+ * positions. Following first parents only, it is a plain loop; otherwise
+ * commits reached through any parent are visited from the highest position
+ * down. Parents are always added to the graph before their children, so
+ * every commit comes before its parents. Only the commits waiting to be
+ * visited and a bit per seen commit are kept.
+ *
+ * @author apotocki
+ */
+class LogWalk implements PrimitiveIterator.OfInt {
+    private final boolean firstParent;
+    private int next;
+    private final PriorityQueue<Integer> queue;
+    private final BitSet seen;
+
+    LogWalk(int start, boolean firstParent) {
+        this.firstParent = firstParent;
+        this.next = start;
+        this.queue = firstParent ? null : new PriorityQueue<>(Collections.reverseOrder());
+        this.seen = firstParent ? null : new BitSet();
+        if (!firstParent && start != CommitGraph.NONE) {
+            queue.add(start);
+            seen.set(start);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return firstParent ? next != CommitGraph.NONE : !queue.isEmpty();
+    }
+
+    @Override
+    public int nextInt() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (firstParent) {
+            int pos = next;
+            next = CommitGraph.getParent(pos);
+            return pos;
+        }
+        int pos = queue.poll();
+        for (int parent : new int[]{CommitGraph.getParent(pos), CommitGraph.getSecondParent(pos)}) {
+            if (parent != CommitGraph.NONE && !seen.get(parent)) {
+                seen.set(parent);
+                queue.add(parent);
+            }
+        }
+        return pos;
+    }
+}
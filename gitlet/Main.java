@@ -1,5 +1,6 @@
 package gitlet;
 
+import java.util.Arrays;
 
 import static gitlet.Utils.*;
 
@@ -11,16 +12,51 @@ import static gitlet.Utils.*;
 public class Main {
 
     /**
-     * Usage: java gitlet.Main ARGS, where ARGS contains
+     * Usage: java gitlet.Main [--trace[=json]] ARGS, where ARGS contains
      * <COMMAND> <OPERAND1> <OPERAND2> ...
      */
     public static void main(String[] args) {
+        String traceOption = null;
+        int first = 0;
+        while (first < args.length && args[first].startsWith("--trace")) {
+            traceOption = args[first].startsWith("--trace=")
+                    ? args[first].substring("--trace=".length()) : "table";
+            first++;
+        }
+        args = Arrays.copyOfRange(args, first, args.length);
+        Trace.configure(traceOption);
         String firstArg = args[0];
         if (firstArg == null) {
             System.out.println("Please provide an argument");
             return;
         }
-        switch (firstArg) {
+        // A traced command runs here, so that the trace shows the work it does
+        if (!Trace.isEnabled() && Daemon.FORWARDED.contains(firstArg) && Daemon.forward(args)) {
+            return;
+        }
+        try {
+            run(args);
+        } catch (GitletException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            Trace.report(firstArg);
+        }
+    }
+
+    /**
+     * Runs the command in ARGS in this process.
+     */
+    static void run(String[] args) {
+        try {
+            dispatch(args);
+        } finally {
+            // Objects written by the command and not yet named by a ref or the index
+            ObjectStore.flush();
+        }
+    }
+
+    private static void dispatch(String[] args) {
+        switch (args[0]) {
             case "init":
                 init();
                 break;
@@ -49,7 +85,7 @@ public class Main {
                 merge(args);
                 break;
             case "log":
-                log();
+                log(args);
                 break;
             case "global-log":
                 globalLog();
@@ -60,6 +96,15 @@ public class Main {
             case "status":
                 status();
                 break;
+            case "diff":
+                diff(args);
+                break;
+            case "gc":
+                gc();
+                break;
+            case "daemon":
+                daemon(args);
+                break;
             default:
                 System.out.println("No command with that name exists.");
         }
@@ -72,9 +117,9 @@ public class Main {
     private static void add(String[] args) {
         if (args.length == 1) {
             System.out.println("pls provide a valid file path");
+            return;
         }
-        String fileName = args[1];
-        Repository.add(fileName);
+        Repository.add(Arrays.asList(args).subList(1, args.length));
     }
 
     private static void rm(String[] args) {
@@ -158,8 +203,55 @@ public class Main {
         Repository.merge(branchToMerge);
     }
 
-    private static void log() {
-        Repository.log();
+    private static void log(String[] args) {
+        int limit = -1;
+        Long since = null;
+        Long until = null;
+        boolean firstParent = false;
+        boolean graph = false;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--first-parent":
+                        firstParent = true;
+                        break;
+                    case "--graph":
+                        graph = true;
+                        break;
+                    case "-n":
+                    case "--since":
+                    case "--until":
+                        if (i + 1 == args.length) {
+                            System.out.println("Incorrect operands.");
+                            return;
+                        }
+                        String value = args[++i];
+                        if (args[i - 1].equals("-n")) {
+                            limit = Integer.parseInt(value);
+                            if (limit < 0) {
+                                System.out.println("Incorrect operands.");
+                                return;
+                            }
+                        } else if (args[i - 1].equals("--since")) {
+                            since = parseTime(value, false);
+                        } else {
+                            until = parseTime(value, true);
+                        }
+                        break;
+                    default:
+                        System.out.println("Incorrect operands.");
+                        return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Incorrect operands.");
+            return;
+        } catch (GitletException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        // Like gitlet's log, only first parents are followed unless the graph is drawn
+        Repository.log(limit, since, until, firstParent || !graph, graph);
     }
 
     private static void globalLog() {
@@ -167,11 +259,82 @@ public class Main {
     }
 
     private static void find(String[] args) {
-        String msg = args[1];
-        Repository.find(msg);
+        String text = null;
+        String mode = "exact";
+        String author = null;
+        Long since = null;
+        Long until = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--substring":
+                    case "--token":
+                    case "--regex":
+                        mode = args[i].substring(2);
+                        break;
+                    case "--author":
+                    case "--since":
+                    case "--until":
+                        if (i + 1 == args.length) {
+                            System.out.println("Incorrect operands.");
+                            return;
+                        }
+                        String value = args[++i];
+                        if (args[i - 1].equals("--author")) {
+                            author = value;
+                        } else if (args[i - 1].equals("--since")) {
+                            since = parseTime(value, false);
+                        } else {
+                            until = parseTime(value, true);
+                        }
+                        break;
+                    default:
+                        if (text != null) {
+                            System.out.println("Incorrect operands.");
+                            return;
+                        }
+                        text = args[i];
+                }
+            }
+        } catch (GitletException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        if (text == null && (!mode.equals("exact")
+                || author == null && since == null && until == null)) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        Repository.find(text, mode, author, since, until);
     }
 
     private static void status() {
         Repository.status();
     }
+
+    private static void diff(String[] args) {
+        if (args.length == 1) {
+            Repository.diff(false);
+        } else if (args.length == 2 && args[1].equals("--cached")) {
+            Repository.diff(true);
+        } else if (args.length == 3) {
+            Repository.diff(args[1], args[2]);
+        } else {
+            System.out.println("Incorrect operands.");
+        }
+    }
+
+    private static void gc() {
+        Repository.gc();
+    }
+
+    private static void daemon(String[] args) {
+        if (args.length > 1 && args[1].equals("stop")) {
+            if (!Daemon.forward(args)) {
+                System.out.println("No daemon is running.");
+            }
+            return;
+        }
+        Daemon.run();
+    }
 }
@@ -0,0 +1,129 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Three-way line merge of two versions of a file against their common ancestor.
+ * Both versions are diffed against the ancestor; regions changed on only one
+ * side, or changed the same way on both, are taken as they are, and only
+ * regions changed differently on both sides are written between conflict
+ * markers.
+ *
+ * @author apotocki
+ */
+class Merge3 {
+    private static final byte[] OURS_MARKER = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS_MARKER = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Writes the merge of the blobs OURSID and THEIRSID, which both descend from
+     * the blob BASEID, to TARGET and returns whether any region conflicted. A
+     * null id is a deleted file: then the whole of both versions conflicts.
+     */
+    static boolean merge(String baseId, String oursId, String theirsId, File target)
+            throws IOException {
+        try (Lines base = Lines.read(baseId);
+             Lines ours = Lines.read(oursId);
+             Lines theirs = Lines.read(theirsId);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(target.toPath()),
+                     ObjectStore.BUFFER_SIZE)) {
+            if (oursId == null || theirsId == null) {
+                writeConflict(out, ours, 0, ours.size(), theirs, 0, theirs.size());
+                return true;
+            }
+            return merge(base, ours, theirs, out);
+        }
+    }
+
+    private static boolean merge(Lines base, Lines ours, Lines theirs, OutputStream out)
+            throws IOException {
+        Diff.LineInterner interner = new Diff.LineInterner();
+        int[] baseIds = base.ids(interner);
+        int[] oursIds = ours.ids(interner);
+        int[] theirsIds = theirs.ids(interner);
+        List<Diff.Edit> oursEdits = Diff.diff(baseIds, oursIds);
+        List<Diff.Edit> theirsEdits = Diff.diff(baseIds, theirsIds);
+
+        boolean conflicted = false;
+        int i = 0;
+        int j = 0;
+        int basePos = 0;
+        /* How far lines of ours and theirs are shifted from the base so far */
+        int oursShift = 0;
+        int theirsShift = 0;
+        while (i < oursEdits.size() || j < theirsEdits.size()) {
+            int lo = Math.min(i < oursEdits.size() ? oursEdits.get(i).beginA : Integer.MAX_VALUE,
+                    j < theirsEdits.size() ? theirsEdits.get(j).beginA : Integer.MAX_VALUE);
+            int hi = lo;
+            int firstOurs = i;
+            int firstTheirs = j;
+            int oursDelta = 0;
+            int theirsDelta = 0;
+            /* Grow the hunk while an edit on either side overlaps or touches it */
+            while (true) {
+                if (i < oursEdits.size() && oursEdits.get(i).beginA <= hi) {
+                    Diff.Edit edit = oursEdits.get(i++);
+                    hi = Math.max(hi, edit.endA);
+                    oursDelta += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+                } else if (j < theirsEdits.size() && theirsEdits.get(j).beginA <= hi) {
+                    Diff.Edit edit = theirsEdits.get(j++);
+                    hi = Math.max(hi, edit.endA);
+                    theirsDelta += (edit.endB - edit.beginB) - (edit.endA - edit.beginA);
+                } else {
+                    break;
+                }
+            }
+            base.write(out, basePos, lo);
+            int oursLo = lo + oursShift;
+            int oursHi = hi + oursShift + oursDelta;
+            int theirsLo = lo + theirsShift;
+            int theirsHi = hi + theirsShift + theirsDelta;
+            if (j == firstTheirs) {
+                ours.write(out, oursLo, oursHi);
+            } else if (i == firstOurs) {
+                theirs.write(out, theirsLo, theirsHi);
+            } else if (sameLines(oursIds, oursLo, oursHi, theirsIds, theirsLo, theirsHi)) {
+                ours.write(out, oursLo, oursHi);
+            } else {
+                writeConflict(out, ours, oursLo, oursHi, theirs, theirsLo, theirsHi);
+                conflicted = true;
+            }
+            basePos = hi;
+            oursShift += oursDelta;
+            theirsShift += theirsDelta;
+        }
+        base.write(out, basePos, base.size());
+        return conflicted;
+    }
+
+    private static boolean sameLines(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+        return Arrays.equals(a, aLo, aHi, b, bLo, bHi);
+    }
+
+    /**
+     * Writes lines OURSLO up to OURSHI of OURS and THEIRSLO up to THEIRSHI of
+     * THEIRS between conflict markers, each marker on a line of its own.
+     */
+    private static void writeConflict(OutputStream out, Lines ours, int oursLo, int oursHi,
+                                      Lines theirs, int theirsLo, int theirsHi) throws IOException {
+        out.write(OURS_MARKER);
+        ours.write(out, oursLo, oursHi);
+        if (oursHi > oursLo && oursHi == ours.size() && !ours.endsWithNewline()) {
+            out.write('\n');
+        }
+        out.write(SEPARATOR);
+        theirs.write(out, theirsLo, theirsHi);
+        if (theirsHi > theirsLo && theirsHi == theirs.size() && !theirs.endsWithNewline()) {
+            out.write('\n');
+        }
+        out.write(THEIRS_MARKER);
+    }
+}
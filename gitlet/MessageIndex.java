@@ -0,0 +1,357 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * An inverted index from the words of commit messages, and from commit
+ * authors, to the commit-graph positions of the commits that contain them.
+ * Words are the runs of letters and digits of a message, in lower case;
+ * authors are indexed as the key "author:" followed by the author.
+ * <p>
+ * The index file holds a table of keys sorted for binary search and the
+ * ascending positions of each key, and covers the first commits of the graph.
+ * Commits added to the graph later are appended to the index log as they are
+ * added, and are folded into the index file by gc, or once the log grows long.
+ * Both the log and the index are only written while message-index.lock is held.
+ *
+ * @author apotocki
+ */
+class MessageIndex {
+    /**
+     * The index File
+     */
+    static final File INDEX = join(Repository.GITLET_DIR, "message-index");
+    /**
+     * The File logging the keys of commits added since the index was written
+     */
+    static final File LOG = join(Repository.GITLET_DIR, "message-index-log");
+
+    /**
+     * Magic number at the start of the index file ("GLMI")
+     */
+    private static final int INDEX_SIGNATURE = 0x474c4d49;
+    private static final int INDEX_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 16;
+    /**
+     * Logged commits after which the log is folded into the index on load
+     */
+    private static final int MAX_LOGGED = 4096;
+    private static final String AUTHOR_KEY = "author:";
+
+    private static MappedByteBuffer index;
+    private static int indexedCount;
+    private static int keyCount;
+    /**
+     * Positions of each key among the logged commits
+     */
+    private static Map<String, List<Integer>> logged;
+
+    /**
+     * Returns the keys of MESSAGE: its words, in lower case.
+     */
+    static List<String> words(String message) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= message.length(); i++) {
+            boolean inWord = i < message.length() && Character.isLetterOrDigit(message.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(message.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    static String authorKey(String author) {
+        return AUTHOR_KEY + author;
+    }
+
+    /**
+     * Logs the keys of COMMITS, just added to the commit graph from FIRSTPOSITION on.
+     */
+    static void add(int firstPosition, List<Commit> commits) {
+        try (LockFile lock = new LockFile(INDEX);
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(LOG, true)))) {
+            for (int i = 0; i < commits.size(); i++) {
+                Commit commit = commits.get(i);
+                writeLogged(out, firstPosition + i, keysOf(commit.getMessage(), commit.getAuthor()));
+            }
+        } catch (IOException e) {
+            throw error("Cannot write message index: %s", e.getMessage());
+        }
+        logged = null;
+    }
+
+    private static Set<String> keysOf(String message, String author) {
+        Set<String> keys = new LinkedHashSet<>(words(message));
+        if (author != null) {
+            keys.add(authorKey(author));
+        }
+        return keys;
+    }
+
+    private static void writeLogged(DataOutputStream out, int position, Set<String> keys)
+            throws IOException {
+        out.writeInt(position);
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            out.writeUTF(key);
+        }
+    }
+
+    /**
+     * Returns the ascending commit-graph positions of the commits with KEY.
+     */
+    static int[] lookup(String key) {
+        load();
+        int[] indexed = lookupIndexed(key);
+        List<Integer> fromLog = logged.get(key);
+        if (fromLog == null) {
+            return indexed;
+        }
+        int[] positions = Arrays.copyOf(indexed, indexed.length + fromLog.size());
+        for (int i = 0; i < fromLog.size(); i++) {
+            positions[indexed.length + i] = fromLog.get(i);
+        }
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    private static int[] lookupIndexed(String key) {
+        int lo = 0;
+        int hi = keyCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = keyAt(mid).compareTo(key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                int slot = HEADER_SIZE + mid * SLOT_SIZE;
+                int[] positions = new int[index.getInt(slot + 12)];
+                index.slice(index.getInt(slot + 8), positions.length * 4).asIntBuffer().get(positions);
+                return positions;
+            }
+        }
+        return new int[0];
+    }
+
+    private static String keyAt(int i) {
+        int slot = HEADER_SIZE + i * SLOT_SIZE;
+        byte[] key = new byte[index.getInt(slot + 4)];
+        index.get(index.getInt(slot), key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Maps the index and reads the log, bringing the index up to date with the
+     * commit graph first if commits are missing from both or the log is long.
+     */
+    private static void load() {
+        if (logged != null) {
+            return;
+        }
+        int graphSize = CommitGraph.size();
+        mapIndex();
+        Map<String, List<Integer>> fromLog = new HashMap<>();
+        BitSet covered = new BitSet();
+        covered.set(0, indexedCount);
+        int loggedCount = readLog(fromLog, covered);
+        if (covered.nextClearBit(0) < graphSize || loggedCount > MAX_LOGGED) {
+            rebuild();
+            return;
+        }
+        logged = fromLog;
+    }
+
+    private static void mapIndex() {
+        indexedCount = 0;
+        keyCount = 0;
+        index = null;
+        if (!INDEX.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(INDEX, "r");
+             FileChannel channel = raf.getChannel()) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw error("Cannot read message index: %s", e.getMessage());
+        }
+        if (index.getInt(0) != INDEX_SIGNATURE || index.getInt(4) != INDEX_VERSION) {
+            throw error("Unrecognized message index format.");
+        }
+        indexedCount = index.getInt(8);
+        keyCount = index.getInt(12);
+    }
+
+    /**
+     * Adds the positions of each logged key to KEYS and marks logged positions in
+     * COVERED. Returns the number of logged commits.
+     */
+    private static int readLog(Map<String, List<Integer>> keys, BitSet covered) {
+        if (!LOG.exists()) {
+            return 0;
+        }
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(LOG.toPath())))) {
+            while (true) {
+                int position;
+                try {
+                    position = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int keyCount = in.readInt();
+                for (int i = 0; i < keyCount; i++) {
+                    keys.computeIfAbsent(in.readUTF(), k -> new ArrayList<>()).add(position);
+                }
+                covered.set(position);
+                count++;
+            }
+        } catch (EOFException e) {
+            // A record cut short by an interrupted commit; its commit is indexed again
+        } catch (IOException e) {
+            throw error("Cannot read message index: %s", e.getMessage());
+        }
+        return count;
+    }
+
+    /**
+     * Writes a new index covering the whole commit graph and empties the log.
+     * Keys come from the current index and log; only commits in neither are read.
+     * Commits logged for positions past the graph as it was when the rebuild
+     * started are kept in the log.
+     */
+    static void rebuild() {
+        // Before locking, as the graph may add commits, which logs them under the lock
+        int graphSize = CommitGraph.size();
+        try (LockFile lock = new LockFile(INDEX)) {
+            mapIndex();
+            TreeMap<String, List<Integer>> keys = new TreeMap<>();
+            for (int i = 0; i < keyCount; i++) {
+                List<Integer> positions = new ArrayList<>();
+                for (int position : lookupIndexed(keyAt(i))) {
+                    positions.add(position);
+                }
+                keys.put(keyAt(i), positions);
+            }
+            BitSet covered = new BitSet();
+            covered.set(0, indexedCount);
+            readLog(keys, covered);
+            TreeMap<Integer, Set<String>> later = new TreeMap<>();
+            for (Map.Entry<String, List<Integer>> key : keys.entrySet()) {
+                for (int position : key.getValue()) {
+                    if (position >= graphSize) {
+                        later.computeIfAbsent(position, p -> new LinkedHashSet<>()).add(key.getKey());
+                    }
+                }
+                key.getValue().removeIf(position -> position >= graphSize);
+            }
+            keys.values().removeIf(List::isEmpty);
+            for (int pos = covered.nextClearBit(0); pos < graphSize; pos = covered.nextClearBit(pos + 1)) {
+                Commit commit = getCommitByShaHash(CommitGraph.getId(pos));
+                for (String key : keysOf(commit.getMessage(), commit.getAuthor())) {
+                    keys.computeIfAbsent(key, k -> new ArrayList<>()).add(pos);
+                }
+            }
+            // The log goes first: a crash in between leaves commits in neither, which load() detects
+            replaceLog(later);
+            write(lock, keys, graphSize);
+        } catch (IOException e) {
+            throw error("Cannot write message index: %s", e.getMessage());
+        }
+        logged = null;
+        mapIndex();
+        logged = new HashMap<>();
+    }
+
+    /**
+     * Replaces the log with the records of LATER, the keys of logged commits by position.
+     */
+    private static void replaceLog(TreeMap<Integer, Set<String>> later) throws IOException {
+        if (later.isEmpty()) {
+            Files.deleteIfExists(LOG.toPath());
+            return;
+        }
+        try (LockFile logLock = new LockFile(LOG)) {
+            DataOutputStream out = new DataOutputStream(logLock.getOutputStream());
+            for (Map.Entry<Integer, Set<String>> record : later.entrySet()) {
+                writeLogged(out, record.getKey(), record.getValue());
+            }
+            out.flush();
+            logLock.commit();
+        }
+    }
+
+    private static void write(LockFile lock, TreeMap<String, List<Integer>> keys, int count)
+            throws IOException {
+        List<byte[]> encodedKeys = new ArrayList<>(keys.size());
+        int keysSize = 0;
+        for (String key : keys.keySet()) {
+            byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+            encodedKeys.add(encoded);
+            keysSize += encoded.length;
+        }
+        int keyOffset = HEADER_SIZE + keys.size() * SLOT_SIZE;
+        int postingsOffset = keyOffset + keysSize;
+        DataOutputStream out = new DataOutputStream(lock.getOutputStream());
+        out.writeInt(INDEX_SIGNATURE);
+        out.writeInt(INDEX_VERSION);
+        out.writeInt(count);
+        out.writeInt(keys.size());
+        int i = 0;
+        for (Map.Entry<String, List<Integer>> key : keys.entrySet()) {
+            // A commit whose log record was cut short may have been read twice
+            List<Integer> positions = new ArrayList<>(new TreeSet<>(key.getValue()));
+            key.setValue(positions);
+            out.writeInt(keyOffset);
+            out.writeInt(encodedKeys.get(i).length);
+            out.writeInt(postingsOffset);
+            out.writeInt(positions.size());
+            keyOffset += encodedKeys.get(i).length;
+            postingsOffset += positions.size() * 4;
+            i++;
+        }
+        for (byte[] key : encodedKeys) {
+            out.write(key);
+        }
+        for (List<Integer> positions : keys.values()) {
+            for (int position : positions) {
+                out.writeInt(position);
+            }
+        }
+        out.flush();
+        lock.commit();
+    }
+}
@@ -0,0 +1,448 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.ObjectStreamConstants;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * Reads and writes objects in .gitlet/objects.
+ * A loose object is stored as the header "TYPE SIZE\0" followed by its content,
+ * DEFLATE-compressed as a whole, and its id is the SHA-1 hash of the
+ * uncompressed header and content. Objects are hashed, compressed and written
+ * in a single pass over a stream, so their content never has to fit in memory.
+ * New objects are moved into place in batches by flush, once they are on disk.
+ * Objects are read from loose files or, after gc, from packs alike.
+ *
+ * @author apotocki
+ */
+class ObjectStore {
+    static final String BLOB = "blob";
+    static final String TREE = "tree";
+    static final String COMMIT = "commit";
+
+    /**
+     * Size of the buffers used to copy object content
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The first two bytes of a Java-serialized object, as written by older gitlet versions
+     */
+    private static final int SERIALIZED_MAGIC = 0xaced;
+
+    /**
+     * Fewest digits of an abbreviated id, unless core.minAbbrev says otherwise
+     */
+    private static final int DEFAULT_MIN_ABBREV = 4;
+
+    /**
+     * Age after which a temporary object file is taken to be left over by a crash
+     */
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * Objects written by this process that are not in place yet: the temporary
+     * file holding each, by id
+     */
+    private static final Map<String, Path> PENDING = new ConcurrentHashMap<>();
+
+    /**
+     * Writes an object of TYPE whose SIZE bytes of content are read from CONTENT
+     * and returns its id. The object is compressed into a temporary file, which
+     * is discarded if an object with the same id already exists and otherwise
+     * moved into place by the next flush. Until then it is read from there.
+     */
+    static String write(String type, long size, InputStream content) throws IOException {
+        Path temp = Files.createTempFile(Repository.OBJECTS.toPath(), "tmp_obj_", null);
+        boolean pending = false;
+        try {
+            Trace.count(Trace.Counter.OBJECT_WRITES);
+            MessageDigest md = newDigest();
+            try (OutputStream out = new BufferedOutputStream(new DeflaterOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp))), BUFFER_SIZE)) {
+                byte[] header = header(type, size);
+                update(md, header, header.length);
+                out.write(header);
+                long copied = 0;
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (int n = content.read(buffer); n != -1; n = content.read(buffer)) {
+                    update(md, buffer, n);
+                    out.write(buffer, 0, n);
+                    copied += n;
+                }
+                Trace.add(Trace.Counter.BYTES_WRITTEN, copied);
+                if (copied != size) {
+                    throw new IOException("Content changed while it was being stored.");
+                }
+            }
+            String id = digest(md);
+            if (!exists(id)) {
+                pending = PENDING.putIfAbsent(id, temp) == null;
+            }
+            return id;
+        } finally {
+            if (!pending) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Writes an object of TYPE with CONTENT and returns its id. Content already
+     * in memory is hashed first, so an object that exists is not compressed again.
+     */
+    static String write(String type, byte[] content) throws IOException {
+        String id = hash(type, content);
+        if (exists(id)) {
+            return id;
+        }
+        return write(type, content.length, new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Moves the objects written since the last flush into place, forcing them
+     * to disk first, so that a crash never leaves a truncated object under its
+     * id. Called before a ref or the index is updated to point at new objects,
+     * and at the end of each command, so that a command that writes many
+     * objects forces them together rather than one at a time as they are written.
+     */
+    static synchronized void flush() {
+        if (PENDING.isEmpty()) {
+            return;
+        }
+        List<Path> written = new ArrayList<>();
+        try {
+            fsync(PENDING.values());
+            for (Map.Entry<String, Path> object : PENDING.entrySet()) {
+                Path target = getFileByShaHash(object.getKey()).toPath();
+                if (Files.exists(target)) {
+                    // Written by another process in the meantime
+                    Files.delete(object.getValue());
+                } else {
+                    Files.createDirectories(target.getParent());
+                    Files.move(object.getValue(), target, StandardCopyOption.ATOMIC_MOVE);
+                    written.add(target);
+                }
+            }
+        } catch (IOException e) {
+            throw error("Cannot write objects: %s", e.getMessage());
+        } finally {
+            PENDING.values().removeIf(temp -> !Files.exists(temp));
+        }
+        fsyncParents(written);
+    }
+
+    /**
+     * Deletes temporary object files left behind by processes that stopped before
+     * flushing them, skipping recent ones that may belong to a running process.
+     */
+    static void pruneTemporaryFiles() {
+        long cutoff = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        File[] temps = Repository.OBJECTS.listFiles((dir, name) -> name.startsWith("tmp_obj_"));
+        if (temps == null) {
+            return;
+        }
+        for (File temp : temps) {
+            if (temp.lastModified() < cutoff) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * A stream over the content of an object that also knows the object's type and size.
+     */
+    static class ObjectStream extends FilterInputStream {
+        private final String type;
+        private final long size;
+
+        ObjectStream(String type, long size, InputStream content) {
+            super(content);
+            this.type = type;
+            this.size = size;
+        }
+
+        String getType() {
+            return type;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                Trace.add(Trace.Counter.BYTES_READ, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                Trace.add(Trace.Counter.BYTES_READ, n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Returns the id the object of TYPE with SIZE bytes of content read from CONTENT
+     * would be stored under, without storing it.
+     */
+    static String hash(String type, long size, InputStream content) throws IOException {
+        MessageDigest md = newDigest();
+        byte[] header = header(type, size);
+        update(md, header, header.length);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int n = content.read(buffer); n != -1; n = content.read(buffer)) {
+            update(md, buffer, n);
+        }
+        return digest(md);
+    }
+
+    static String hash(String type, byte[] content) {
+        try {
+            return hash(type, content.length, new ByteArrayInputStream(content));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    static boolean exists(String id) {
+        return PENDING.containsKey(id) || getFileByShaHash(id).exists() || Pack.find(id) != null;
+    }
+
+    /**
+     * Returns a stream over the content of the object ID, which must be of TYPE.
+     */
+    static ObjectStream open(String id, String type) throws IOException {
+        ObjectStream in = open(id);
+        if (!in.getType().equals(type)) {
+            in.close();
+            throw new IOException("Object " + id + " is a " + in.getType() + ", not a " + type);
+        }
+        return in;
+    }
+
+    /**
+     * Returns a stream over the content of the object ID, read from a loose
+     * object or from a pack. Objects written by older gitlet versions as plain
+     * serialized Blob or Commit objects are read as well.
+     */
+    static ObjectStream open(String id) throws IOException {
+        Trace.count(Trace.Counter.OBJECT_READS);
+        Path pending = PENDING.get(id);
+        File looseObject = pending != null ? pending.toFile() : getFileByShaHash(id);
+        if (!looseObject.exists()) {
+            Pack pack = Pack.find(id);
+            if (pack == null) {
+                throw new IOException("No object " + id);
+            }
+            return pack.open(id);
+        }
+        InputStream in = new BufferedInputStream(
+                Files.newInputStream(looseObject.toPath()), BUFFER_SIZE);
+        in.mark(2);
+        int magic = (in.read() << 8) | in.read();
+        in.reset();
+        if (magic == SERIALIZED_MAGIC) {
+            byte[] serialized = in.readAllBytes();
+            in.close();
+            if (serializedClassName(serialized).equals(Blob.class.getName())) {
+                byte[] content = deserialize(serialized, Blob.class).getFileContent();
+                return new ObjectStream(BLOB, content.length, new ByteArrayInputStream(content));
+            }
+            return new ObjectStream(COMMIT, serialized.length,
+                    new ByteArrayInputStream(serialized));
+        }
+        InputStream content = new BufferedInputStream(new InflaterInputStream(in), BUFFER_SIZE);
+        String type = readHeaderField(content, ' ');
+        long size = Long.parseLong(readHeaderField(content, '\0'));
+        return new ObjectStream(type, size, content);
+    }
+
+    /**
+     * Returns the whole content of the object ID, which must be of TYPE.
+     */
+    static byte[] read(String id, String type) throws IOException {
+        try (InputStream in = open(id, type)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Returns the ids of all loose objects.
+     */
+    static List<String> looseIds() {
+        flush();
+        List<String> ids = new ArrayList<>();
+        Trace.count(Trace.Counter.DIRECTORY_LISTINGS);
+        String[] dirs = Repository.OBJECTS.list((dir, name) -> name.length() == 2);
+        if (dirs == null) {
+            return ids;
+        }
+        Arrays.sort(dirs);
+        for (String dir : dirs) {
+            List<String> files = plainFilenamesIn(join(Repository.OBJECTS, dir));
+            for (String file : files) {
+                if (file.length() == UID_LENGTH - 2) {
+                    ids.add(dir + file);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the ids of all objects, loose or packed, in sorted order.
+     */
+    static TreeSet<String> allIds() {
+        TreeSet<String> ids = new TreeSet<>(looseIds());
+        for (Pack pack : Pack.all()) {
+            for (int pos = 0; pos < pack.size(); pos++) {
+                ids.add(pack.getId(pos));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the ids of all objects whose id starts with PREFIX, at least two
+     * lower-case hex digits, in sorted order. Packed ids are found by binary
+     * search in the pack indexes; loose objects can only be in the one
+     * directory named after the first two digits, which is the only one listed.
+     */
+    static TreeSet<String> findByPrefix(String prefix) {
+        flush();
+        TreeSet<String> ids = new TreeSet<>();
+        List<String> looseInDir = plainFilenamesIn(join(Repository.OBJECTS, prefix.substring(0, 2)));
+        if (looseInDir != null) {
+            for (String file : looseInDir) {
+                if (file.startsWith(prefix.substring(2))) {
+                    ids.add(prefix.substring(0, 2) + file);
+                }
+            }
+        }
+        for (Pack pack : Pack.all()) {
+            pack.addIdsWithPrefix(prefix, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the full id of the object of TYPE whose id is ID or starts with
+     * it, or null if there is none. Abbreviated ids must have at least
+     * core.minAbbrev digits (4 by default). Objects of other types with the
+     * same prefix are ignored; throws a GitletException if several objects
+     * of TYPE match.
+     */
+    static String resolve(String id, String type) {
+        id = id.toLowerCase(Locale.ROOT);
+        if (!id.matches("[0-9a-f]*") || id.length() > UID_LENGTH) {
+            return null;
+        }
+        if (id.length() == UID_LENGTH) {
+            return exists(id) ? id : null;
+        }
+        int minLength = Math.max(2, Config.getInt(Config.MIN_ABBREV, DEFAULT_MIN_ABBREV));
+        if (id.length() < minLength) {
+            throw error("Id %s is too short; use at least %d digits.", id, minLength);
+        }
+        TreeSet<String> matches = findByPrefix(id);
+        if (matches.size() > 1) {
+            matches.removeIf(match -> !typeOf(match).equals(type));
+        }
+        if (matches.size() > 1) {
+            throw error("Id %s is ambiguous: it matches %s.", id, String.join(", ", matches));
+        }
+        return matches.isEmpty() ? null : matches.first();
+    }
+
+    private static String typeOf(String id) {
+        try (ObjectStream in = open(id)) {
+            return in.getType();
+        } catch (IOException e) {
+            throw error("Cannot read object %s: %s", id, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the name of the class of the object serialized in SERIALIZED,
+     * read from the class descriptor that follows the stream header.
+     */
+    private static String serializedClassName(byte[] serialized) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+        in.skipBytes(4);
+        if (in.readByte() != ObjectStreamConstants.TC_OBJECT
+                || in.readByte() != ObjectStreamConstants.TC_CLASSDESC) {
+            throw new IOException("Unrecognized serialized object");
+        }
+        return in.readUTF();
+    }
+
+    private static byte[] header(String type, long size) {
+        return (type + " " + size + "\0").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String readHeaderField(InputStream in, char terminator) throws IOException {
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        for (int b = in.read(); b != terminator; b = in.read()) {
+            if (b == -1) {
+                throw new IOException("Corrupt object header");
+            }
+            field.write(b);
+        }
+        return field.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void update(MessageDigest md, byte[] data, int length) {
+        long start = Trace.start();
+        md.update(data, 0, length);
+        Trace.addTime(Trace.Counter.SHA1_NANOS, start);
+    }
+
+    private static String digest(MessageDigest md) {
+        long start = Trace.start();
+        byte[] hash = md.digest();
+        Trace.addTime(Trace.Counter.SHA1_NANOS, start);
+        return toHex(hash);
+    }
+
+    private static MessageDigest newDigest() {
+        Trace.count(Trace.Counter.SHA1_INVOCATIONS);
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+}
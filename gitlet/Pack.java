@@ -0,0 +1,490 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * A packfile: many objects stored in a single file, with similar blobs
+ * delta-compressed against each other, plus an index to find them.
+ * <p>
+ * The .pack file holds a header and then one entry per object:
+ * <pre>
+ *   type (byte) | size (varint) | [base offset (long), for deltas] | DEFLATE data
+ * </pre>
+ * where the data of a delta entry is a Delta against the entry at the base offset.
+ * The .idx file holds a fan-out table of 256 cumulative counts by first id byte,
+ * the sorted object ids and the offsets of their entries in the .pack file, so
+ * an object is found by a binary search without listing any directory.
+ *
+ * @author apotocki
+ */
+class Pack {
+    /**
+     * The directory holding all packfiles
+     */
+    static final File PACK_DIR = join(Repository.OBJECTS, "pack");
+
+    private static final int PACK_SIGNATURE = 0x4750414b;
+    private static final int IDX_SIGNATURE = 0x47494458;
+    private static final int VERSION = 1;
+    private static final int FANOUT_SIZE = 256;
+    private static final int ID_SIZE = UID_LENGTH / 2;
+    private static final int IDX_HEADER_SIZE = 8 + FANOUT_SIZE * 4;
+
+    private static final int TYPE_COMMIT = 1;
+    private static final int TYPE_TREE = 2;
+    private static final int TYPE_BLOB = 3;
+    private static final int TYPE_DELTA = 7;
+
+    /**
+     * Number of preceding objects each blob is compared against when looking for a delta base
+     */
+    private static final int DELTA_WINDOW = 10;
+    /**
+     * Maximum length of a chain of deltas
+     */
+    private static final int MAX_DELTA_DEPTH = 10;
+    /**
+     * Blobs larger than this are never delta-compressed, so they are packed as a stream
+     */
+    private static final int MAX_DELTA_SIZE = 16 * 1024 * 1024;
+
+    private static List<Pack> packs;
+
+    private final File packFile;
+    private final File idxFile;
+    private final MappedByteBuffer index;
+    private final int count;
+
+    private Pack(File idxFile) throws IOException {
+        this.idxFile = idxFile;
+        String name = idxFile.getName();
+        this.packFile = join(PACK_DIR, name.substring(0, name.length() - 4) + ".pack");
+        try (RandomAccessFile raf = new RandomAccessFile(idxFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            this.index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (index.getInt(0) != IDX_SIGNATURE || index.getInt(4) != VERSION) {
+            throw new IOException("Unrecognized pack index " + name);
+        }
+        this.count = fanout(FANOUT_SIZE - 1);
+    }
+
+    /**
+     * Returns all packs of the repository.
+     */
+    static synchronized List<Pack> all() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            Trace.count(Trace.Counter.DIRECTORY_LISTINGS);
+            File[] idxFiles = PACK_DIR.listFiles((dir, name) -> name.endsWith(".idx"));
+            if (idxFiles != null) {
+                Arrays.sort(idxFiles);
+                for (File idxFile : idxFiles) {
+                    try {
+                        packs.add(new Pack(idxFile));
+                    } catch (IOException e) {
+                        throw error("Cannot read pack: %s", e.getMessage());
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Forgets the packs found so far, so that packs written or deleted by other
+     * processes are seen by the next lookup.
+     */
+    static synchronized void refresh() {
+        packs = null;
+    }
+
+    /**
+     * Returns the pack holding the object ID, or null if no pack has it.
+     */
+    static Pack find(String id) {
+        for (Pack pack : all()) {
+            if (pack.position(id) >= 0) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int fanout(int firstByte) {
+        return firstByte < 0 ? 0 : index.getInt(8 + firstByte * 4);
+    }
+
+    String getId(int pos) {
+        byte[] rawId = new byte[ID_SIZE];
+        index.get(IDX_HEADER_SIZE + pos * ID_SIZE, rawId);
+        return toHex(rawId);
+    }
+
+    private long getOffset(int pos) {
+        return index.getLong(IDX_HEADER_SIZE + count * ID_SIZE + pos * 8);
+    }
+
+    /**
+     * Returns the position of ID in the index, or -1 if it is not in this pack.
+     */
+    int position(String id) {
+        byte[] rawId = fromHex(id);
+        int firstByte = rawId[0] & 0xff;
+        int low = fanout(firstByte - 1);
+        int high = fanout(firstByte) - 1;
+        byte[] candidate = new byte[ID_SIZE];
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            index.get(IDX_HEADER_SIZE + mid * ID_SIZE, candidate);
+            int cmp = Arrays.compareUnsigned(candidate, rawId);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds the ids in this pack that start with PREFIX, at least two hex digits,
+     * to IDS. The first id not less than PREFIX is found by a binary search
+     * within its fan-out bucket, and only the matching ids after it are read.
+     */
+    void addIdsWithPrefix(String prefix, Collection<String> ids) {
+        int firstByte = Integer.parseInt(prefix.substring(0, 2), 16);
+        byte[] lowest = fromHex((prefix + "0".repeat(UID_LENGTH)).substring(0, UID_LENGTH));
+        int low = fanout(firstByte - 1);
+        int high = fanout(firstByte);
+        byte[] candidate = new byte[ID_SIZE];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            index.get(IDX_HEADER_SIZE + mid * ID_SIZE, candidate);
+            if (Arrays.compareUnsigned(candidate, lowest) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int pos = low; pos < fanout(firstByte); pos++) {
+            String id = getId(pos);
+            if (!id.startsWith(prefix)) {
+                break;
+            }
+            ids.add(id);
+        }
+    }
+
+    /**
+     * Returns a stream over the content of the object ID, which must be in this pack.
+     */
+    ObjectStore.ObjectStream open(String id) throws IOException {
+        long offset = getOffset(position(id));
+        RandomAccessFile raf = new RandomAccessFile(packFile, "r");
+        try {
+            raf.seek(offset);
+            int type = raf.read();
+            long size = Delta.readVarint(Channels.newInputStream(raf.getChannel()));
+            if (type != TYPE_DELTA) {
+                InputStream data = new InflaterInputStream(new BufferedInputStream(
+                        Channels.newInputStream(raf.getChannel()), ObjectStore.BUFFER_SIZE));
+                return new ObjectStore.ObjectStream(typeName(type), size, data);
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        raf.close();
+        ResolvedEntry resolved = readEntry(offset);
+        return new ObjectStore.ObjectStream(resolved.type, resolved.content.length,
+                new ByteArrayInputStream(resolved.content));
+    }
+
+    /**
+     * The type and whole content of a pack entry, with deltas applied.
+     */
+    private static class ResolvedEntry {
+        private final String type;
+        private final byte[] content;
+
+        ResolvedEntry(String type, byte[] content) {
+            this.type = type;
+            this.content = content;
+        }
+    }
+
+    private ResolvedEntry readEntry(long offset) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(packFile, "r")) {
+            raf.seek(offset);
+            int type = raf.read();
+            InputStream in = Channels.newInputStream(raf.getChannel());
+            Delta.readVarint(in);
+            long baseOffset = type == TYPE_DELTA ? raf.readLong() : 0;
+            byte[] data = new InflaterInputStream(new BufferedInputStream(
+                    Channels.newInputStream(raf.getChannel()), ObjectStore.BUFFER_SIZE))
+                    .readAllBytes();
+            if (type != TYPE_DELTA) {
+                return new ResolvedEntry(typeName(type), data);
+            }
+            ResolvedEntry base = readEntry(baseOffset);
+            return new ResolvedEntry(base.type, Delta.apply(base.content, data));
+        }
+    }
+
+    private static int typeCode(String type) {
+        switch (type) {
+            case ObjectStore.COMMIT:
+                return TYPE_COMMIT;
+            case ObjectStore.TREE:
+                return TYPE_TREE;
+            case ObjectStore.BLOB:
+                return TYPE_BLOB;
+            default:
+                throw error("Unknown object type %s", type);
+        }
+    }
+
+    private static String typeName(int code) throws IOException {
+        switch (code) {
+            case TYPE_COMMIT:
+                return ObjectStore.COMMIT;
+            case TYPE_TREE:
+                return ObjectStore.TREE;
+            case TYPE_BLOB:
+                return ObjectStore.BLOB;
+            default:
+                throw new IOException("Unknown pack entry type " + code);
+        }
+    }
+
+    /**
+     * An object about to be packed.
+     */
+    private static class PackedObject {
+        private final String id;
+        private final String type;
+        private final long size;
+        private final String pathHint;
+        private long offset;
+
+        PackedObject(String id, String type, long size, String pathHint) {
+            this.id = id;
+            this.type = type;
+            this.size = size;
+            this.pathHint = pathHint == null ? "" : pathHint;
+        }
+    }
+
+    /**
+     * A recently packed blob that later blobs may be delta-compressed against.
+     */
+    private static class DeltaBase {
+        private final PackedObject object;
+        private final Delta.Index index;
+        private final int depth;
+
+        DeltaBase(PackedObject object, byte[] content, int depth) {
+            this.object = object;
+            this.index = new Delta.Index(content);
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Counts the bytes written through it, so entry offsets are known while packing.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Packs all loose and packed objects into a single new pack and deletes the
+     * loose objects and old packs. PATHHINTS maps blob and tree ids to a path they
+     * were committed under; objects of the same path are likely to delta well, so they
+     * are placed next to each other, largest first.
+     */
+    static void packAll(Map<String, String> pathHints) throws IOException {
+        List<String> looseIds = ObjectStore.looseIds();
+        List<Pack> oldPacks = new ArrayList<>(all());
+        TreeMap<String, PackedObject> objects = new TreeMap<>();
+        for (String id : ObjectStore.allIds()) {
+            try (ObjectStore.ObjectStream in = ObjectStore.open(id)) {
+                objects.put(id, new PackedObject(id, in.getType(), in.getSize(),
+                        pathHints.get(id)));
+            }
+        }
+        if (objects.isEmpty() || looseIds.isEmpty() && oldPacks.size() == 1) {
+            return;
+        }
+        List<PackedObject> order = new ArrayList<>(objects.values());
+        order.sort(Comparator.comparing((PackedObject o) -> o.type)
+                .thenComparing(o -> o.pathHint)
+                .thenComparing(o -> -o.size));
+
+        PACK_DIR.mkdir();
+        File tempPack = Files.createTempFile(PACK_DIR.toPath(), "tmp_pack_", null).toFile();
+        Deflater deflater = new Deflater();
+        try (CountingOutputStream counting = new CountingOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPack.toPath())));
+             DataOutputStream out = new DataOutputStream(counting)) {
+            out.writeInt(PACK_SIGNATURE);
+            out.writeInt(VERSION);
+            out.writeInt(order.size());
+            Deque<DeltaBase> window = new ArrayDeque<>();
+            for (PackedObject object : order) {
+                object.offset = counting.count;
+                try (ObjectStore.ObjectStream in = ObjectStore.open(object.id)) {
+                    if (object.type.equals(ObjectStore.COMMIT) || object.size > MAX_DELTA_SIZE) {
+                        writeEntry(out, deflater, typeCode(object.type), object.size, in);
+                        continue;
+                    }
+                    byte[] content = in.readAllBytes();
+                    DeltaBase best = null;
+                    byte[] bestDelta = null;
+                    for (DeltaBase base : window) {
+                        if (base.depth >= MAX_DELTA_DEPTH || !base.object.type.equals(object.type)) {
+                            continue;
+                        }
+                        int maxSize = bestDelta == null ? content.length / 2 : bestDelta.length - 1;
+                        byte[] delta = Delta.create(base.index, content, maxSize);
+                        if (delta != null) {
+                            best = base;
+                            bestDelta = delta;
+                        }
+                    }
+                    int depth = 0;
+                    if (best == null) {
+                        writeEntry(out, deflater, typeCode(object.type), content.length,
+                                new ByteArrayInputStream(content));
+                    } else {
+                        out.writeByte(TYPE_DELTA);
+                        Delta.writeVarint(out, content.length);
+                        out.writeLong(best.object.offset);
+                        writeData(out, deflater, new ByteArrayInputStream(bestDelta));
+                        depth = best.depth + 1;
+                    }
+                    window.addFirst(new DeltaBase(object, content, depth));
+                    if (window.size() > DELTA_WINDOW) {
+                        window.removeLast();
+                    }
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+
+        String packName = "pack-" + sha1(objects.keySet().toArray());
+        File idxFile = join(PACK_DIR, packName + ".idx");
+        File tempIdx = Files.createTempFile(PACK_DIR.toPath(), "tmp_idx_", null).toFile();
+        writeIndex(tempIdx, objects);
+        fsync(List.of(tempPack.toPath(), tempIdx.toPath()));
+        Files.move(tempPack.toPath(), join(PACK_DIR, packName + ".pack").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tempIdx.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        fsyncParents(List.of(idxFile.toPath()));
+
+        refresh();
+        for (Pack oldPack : oldPacks) {
+            if (!oldPack.idxFile.equals(idxFile)) {
+                oldPack.idxFile.delete();
+                oldPack.packFile.delete();
+            }
+        }
+        for (String id : looseIds) {
+            File looseObject = getFileByShaHash(id);
+            looseObject.delete();
+            looseObject.getParentFile().delete();
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Deflater deflater, int type,
+                                   long size, InputStream content) throws IOException {
+        out.writeByte(type);
+        Delta.writeVarint(out, size);
+        writeData(out, deflater, content);
+    }
+
+    private static void writeData(OutputStream out, Deflater deflater,
+                                  InputStream content) throws IOException {
+        deflater.reset();
+        DeflaterOutputStream data =
+                new DeflaterOutputStream(out, deflater, ObjectStore.BUFFER_SIZE);
+        content.transferTo(data);
+        data.finish();
+    }
+
+    private static void writeIndex(File idxFile, TreeMap<String, PackedObject> objects)
+            throws IOException {
+        int[] fanout = new int[FANOUT_SIZE];
+        for (String id : objects.keySet()) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(idxFile.toPath())))) {
+            out.writeInt(IDX_SIGNATURE);
+            out.writeInt(VERSION);
+            int total = 0;
+            for (int n : fanout) {
+                total += n;
+                out.writeInt(total);
+            }
+            for (String id : objects.keySet()) {
+                out.write(fromHex(id));
+            }
+            for (PackedObject object : objects.values()) {
+                out.writeLong(object.offset);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * The packed-refs file, which holds many refs in one file so that
+ * repositories with thousands of branches do not need a file per branch.
+ * After a header line, each line is "ID NAME", where NAME is the full name of
+ * the ref, such as refs/heads/feature/x, and lines are sorted by name, so a
+ * ref is found by binary search over the lines. The file is read once per
+ * process and again only when it changes. Loose ref files override it.
+ *
+ * @author apotocki
+ */
+class PackedRefs {
+    /**
+     * The packed-refs File
+     */
+    static final File FILE = join(Repository.GITLET_DIR, "packed-refs");
+
+    private static final String HEADER = "# gitlet packed-refs 1\n";
+    /**
+     * Offset of the name on each line, after the id and a space
+     */
+    private static final int NAME_OFFSET = UID_LENGTH + 1;
+
+    private static byte[] data;
+    private static long loadedLength;
+    private static long loadedModified;
+
+    /**
+     * Reads the file, unless it has not changed since it was last read.
+     */
+    private static void load() {
+        long length = FILE.length();
+        long modified = FILE.lastModified();
+        if (data != null && length == loadedLength && modified == loadedModified) {
+            return;
+        }
+        if (!FILE.exists()) {
+            data = HEADER.getBytes(StandardCharsets.UTF_8);
+        } else {
+            try {
+                data = Files.readAllBytes(FILE.toPath());
+            } catch (IOException e) {
+                throw error("Cannot read packed refs: %s", e.getMessage());
+            }
+            if (!new String(data, 0, Math.min(data.length, HEADER.length()),
+                    StandardCharsets.UTF_8).equals(HEADER)) {
+                throw error("Unrecognized packed refs format.");
+            }
+        }
+        loadedLength = length;
+        loadedModified = modified;
+    }
+
+    /**
+     * Returns the id the packed ref NAME points to, or null if it is not packed.
+     */
+    static String get(String name) {
+        load();
+        int line = search(name);
+        if (line < data.length && nameAt(line).equals(name)) {
+            return new String(data, line, UID_LENGTH, StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether a packed ref's name starts with PREFIX.
+     */
+    static boolean hasPrefix(String prefix) {
+        load();
+        int line = search(prefix);
+        return line < data.length && nameAt(line).startsWith(prefix);
+    }
+
+    /**
+     * Returns the offset of the first line whose name is not less than NAME,
+     * or the length of the file if there is none.
+     */
+    private static int search(String name) {
+        int lo = HEADER.length();
+        int hi = data.length;
+        while (lo < hi) {
+            int line = (lo + hi) >>> 1;
+            while (line > lo && data[line - 1] != '\n') {
+                line--;
+            }
+            if (nameAt(line).compareTo(name) < 0) {
+                lo = lineEnd(line) + 1;
+            } else {
+                hi = line;
+            }
+        }
+        return lo;
+    }
+
+    private static int lineEnd(int line) {
+        int end = line;
+        while (end < data.length && data[end] != '\n') {
+            end++;
+        }
+        return end;
+    }
+
+    private static String nameAt(int line) {
+        int start = line + NAME_OFFSET;
+        return new String(data, start, lineEnd(line) - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns all packed refs, by name.
+     */
+    static TreeMap<String, String> all() {
+        load();
+        TreeMap<String, String> refs = new TreeMap<>();
+        for (int line = HEADER.length(); line < data.length; line = lineEnd(line) + 1) {
+            refs.put(nameAt(line), new String(data, line, UID_LENGTH, StandardCharsets.UTF_8));
+        }
+        return refs;
+    }
+
+    /**
+     * Adds REFS, by name, to the packed refs, replacing the packed values of
+     * refs with the same names.
+     */
+    static void add(Map<String, String> refs) {
+        try (LockFile lock = new LockFile(FILE)) {
+            data = null;
+            TreeMap<String, String> packed = all();
+            packed.putAll(refs);
+            write(lock, packed);
+        } catch (IOException e) {
+            throw error("Cannot write packed refs: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the ref NAME from the packed refs, if it is there.
+     */
+    static void remove(String name) {
+        if (get(name) == null) {
+            return;
+        }
+        try (LockFile lock = new LockFile(FILE)) {
+            data = null;
+            TreeMap<String, String> packed = all();
+            if (packed.remove(name) != null) {
+                write(lock, packed);
+            }
+        } catch (IOException e) {
+            throw error("Cannot write packed refs: %s", e.getMessage());
+        }
+    }
+
+    private static void write(LockFile lock, TreeMap<String, String> refs) throws IOException {
+        StringBuilder content = new StringBuilder(HEADER);
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            content.append(ref.getValue()).append(' ').append(ref.getKey()).append('\n');
+        }
+        lock.commit(content.toString());
+        data = null;
+    }
+}
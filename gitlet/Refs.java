@@ -2,16 +2,30 @@ package gitlet;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
 
 import static gitlet.Utils.*;
 
+/**
+ * Branches and HEAD. A branch is a loose ref file under refs/heads, whose
+ * path below it is the branch name, so names like feature/x are nested
+ * directories, or a line of packed-refs. A loose ref overrides a packed one;
+ * gc moves loose refs into packed-refs.
+ *
+ * @author apotocki
+ */
 public class Refs {
     public static final File REF_DIR = join(Repository.GITLET_DIR, "refs");
     public static final File HEAD = join(Repository.GITLET_DIR, "HEAD");
     public static final File HEADS_DIR = join(REF_DIR, "heads");
     public static final File REMOTES_DIR = join(REF_DIR, "remotes");
+    private static final String HEADS_PREFIX = "refs/heads/";
 
     public static void init() {
         File masterBranch = join(HEADS_DIR, "master");
@@ -19,7 +33,7 @@ public class Refs {
             REF_DIR.mkdir();
             HEADS_DIR.mkdir();
             REMOTES_DIR.mkdir();
-            HEAD.createNewFile();
+            writeContents(HEAD, "ref: refs/heads/master");
             masterBranch.createNewFile();
         } catch (IOException e) {
             System.out.println(e.getMessage());
@@ -27,64 +41,225 @@ public class Refs {
     }
 
     public static void switchBranch(String branchName) {
-        File branchHead = join(HEADS_DIR, branchName);
-        if (branchHead.exists()) {
-            writeContents(HEAD, "ref: refs/heads/", branchName);
+        if (exists(branchName)) {
+            writeRef(HEAD, null, "ref: refs/heads/", branchName);
         } else {
             throw new GitletException("No branch with this name exist");
         }
     }
 
-    public static void updateHead(String commit, String branchName) {
-        File branchHead = join(HEADS_DIR, branchName);
-        if (branchHead.exists()) {
-            writeContents(branchHead, commit);
-            writeContents(HEAD, "ref: refs/heads/", branchName);
+    /**
+     * Moves the branch BRANCHNAME from EXPECTEDCOMMIT, the commit it was at when
+     * the command read it, to COMMIT. Throws a GitletException and leaves the
+     * branch alone if another process has moved it since.
+     */
+    public static void updateHead(String commit, String expectedCommit, String branchName) {
+        if (exists(branchName)) {
+            writeRef(join(HEADS_DIR, branchName), expectedCommit, commit);
         } else {
             System.out.println("No branch with this name exist");
         }
     }
 
     public static String getHeadCommitId() {
-        String headLocation = readContentsAsString(HEAD).replaceFirst("ref: ", "");
-        File head = join(Repository.GITLET_DIR, headLocation);
-        return readContentsAsString(head);
+        return getHeadCommitId(getActiveBranch());
     }
 
+    /**
+     * Returns the commit id the branch BRANCHNAME points to, or null if there
+     * is no such branch.
+     */
     public static String getHeadCommitId(String branchName) {
-        return readContentsAsString(join(HEADS_DIR, branchName));
+        File loose = join(HEADS_DIR, branchName);
+        if (loose.isFile()) {
+            return readContentsAsString(loose);
+        }
+        return PackedRefs.get(HEADS_PREFIX + branchName);
     }
 
     public static String getActiveBranch() {
         return readContentsAsString(HEAD).replaceFirst("ref: refs/heads/", "");
     }
 
+    public static boolean exists(String branchName) {
+        return getHeadCommitId(branchName) != null;
+    }
+
     public static List<String> getAllBranchesNames() {
-        return plainFilenamesIn(HEADS_DIR);
+        return new ArrayList<>(getAllBranchesHeadIds().keySet());
+    }
+
+    /**
+     * Returns the commit id of every branch, by branch name, read from the refs
+     * alone.
+     */
+    public static TreeMap<String, String> getAllBranchesHeadIds() {
+        TreeMap<String, String> heads = new TreeMap<>();
+        for (Map.Entry<String, String> ref : PackedRefs.all().entrySet()) {
+            if (ref.getKey().startsWith(HEADS_PREFIX)) {
+                heads.put(ref.getKey().substring(HEADS_PREFIX.length()), ref.getValue());
+            }
+        }
+        heads.putAll(looseBranches());
+        return heads;
+    }
+
+    /**
+     * Returns the commit id of every branch with a loose ref file, by name.
+     */
+    private static TreeMap<String, String> looseBranches() {
+        TreeMap<String, String> branches = new TreeMap<>();
+        if (!HEADS_DIR.isDirectory()) {
+            return branches;
+        }
+        Trace.count(Trace.Counter.DIRECTORY_LISTINGS);
+        try (Stream<Path> files = Files.walk(HEADS_DIR.toPath())) {
+            files.filter(Files::isRegularFile)
+                    // Skips the lock files of refs being updated
+                    .filter(file -> !file.getFileName().toString().endsWith(".lock"))
+                    .forEach(file -> branches.put(branchName(file),
+                            readContentsAsString(file.toFile())));
+        } catch (IOException e) {
+            throw error("Cannot read branches: %s", e.getMessage());
+        }
+        return branches;
     }
 
     public static void createNewBranch(String branchName, String headCommitID) {
-        File newBranch = join(HEADS_DIR, branchName);
-        if (newBranch.exists()) {
+        if (!isValidName(branchName)) {
+            System.out.println("Not a valid branch name.");
+            return;
+        }
+        if (exists(branchName)) {
             System.out.println("Branch with the given name already exist");
             return;
         }
-        try {
-            newBranch.createNewFile();
-            writeContents(newBranch, headCommitID);
+        // A branch cannot be both a name and a directory of other names
+        for (int slash = branchName.indexOf('/'); slash >= 0;
+             slash = branchName.indexOf('/', slash + 1)) {
+            String parent = branchName.substring(0, slash);
+            if (exists(parent)) {
+                System.out.println("Cannot create " + branchName + ": branch " + parent + " exists.");
+                return;
+            }
+        }
+        File loose = join(HEADS_DIR, branchName);
+        if (loose.isDirectory() || PackedRefs.hasPrefix(HEADS_PREFIX + branchName + "/")) {
+            System.out.println("Cannot create " + branchName + ": branches under "
+                    + branchName + "/ exist.");
+            return;
+        }
+        writeRef(loose, "", headCommitID);
+    }
+
+    /**
+     * Returns whether NAME can be used as a branch name: one or more
+     * '/'-separated parts, none of them empty, starting with '.' or ending
+     * with ".lock", and no whitespace.
+     */
+    private static boolean isValidName(String name) {
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.startsWith(".") || part.endsWith(".lock")) {
+                return false;
+            }
+        }
+        return name.chars().noneMatch(Character::isWhitespace);
+    }
+
+    /**
+     * Deletes the branch BRANCHNAME, both its loose ref and its packed one.
+     */
+    public static void deleteBranch(String branchName) {
+        File loose = join(HEADS_DIR, branchName);
+        loose.getParentFile().mkdirs();
+        try (LockFile lock = new LockFile(loose)) {
+            PackedRefs.remove(HEADS_PREFIX + branchName);
+            Files.deleteIfExists(loose.toPath());
         } catch (IOException e) {
-            System.out.println(e.getMessage());
+            throw error("Cannot delete branch %s: %s", branchName, e.getMessage());
+        }
+        removeEmptyParents(loose);
+    }
+
+    /**
+     * Moves all loose branches into packed-refs. A loose ref is only deleted
+     * if, under its lock, it still holds the value that was packed.
+     */
+    public static void pack() {
+        TreeMap<String, String> loose = looseBranches();
+        loose.values().removeIf(String::isEmpty);
+        if (loose.isEmpty()) {
+            return;
+        }
+        TreeMap<String, String> refs = new TreeMap<>();
+        for (Map.Entry<String, String> branch : loose.entrySet()) {
+            refs.put(HEADS_PREFIX + branch.getKey(), branch.getValue());
+        }
+        PackedRefs.add(refs);
+        for (Map.Entry<String, String> branch : loose.entrySet()) {
+            File file = join(HEADS_DIR, branch.getKey());
+            try (LockFile lock = new LockFile(file)) {
+                if (file.isFile() && readContentsAsString(file).equals(branch.getValue())) {
+                    Files.delete(file.toPath());
+                }
+            } catch (IOException e) {
+                throw error("Cannot pack branch %s: %s", branch.getKey(), e.getMessage());
+            }
+            removeEmptyParents(file);
         }
     }
 
-    public static List<Commit> getAllBranchesHeadsCommits() {
-        List<String> filesInHeadsDir = plainFilenamesIn(HEADS_DIR);
-        if (filesInHeadsDir == null) {
-            System.out.println("no commits to log");
-            return null;
+    /**
+     * Deletes the directories of FILE below refs/heads that are left empty.
+     */
+    private static void removeEmptyParents(File file) {
+        for (File dir = file.getParentFile(); !dir.equals(HEADS_DIR); dir = dir.getParentFile()) {
+            String[] left = dir.list();
+            if (left == null || left.length > 0 || !dir.delete()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replaces the ref REF with CONTENTS through its lock file, once the
+     * objects written so far are on disk, so that a crash leaves either the
+     * old or the new ref and never one naming a missing commit. Unless
+     * EXPECTED is null, REF must still hold EXPECTED, or "" if it must not
+     * hold anything yet, which is checked while it is locked. A packed ref
+     * is updated by writing a loose ref that overrides it.
+     */
+    private static void writeRef(File ref, String expected, String... contents) {
+        ObjectStore.flush();
+        ref.getParentFile().mkdirs();
+        try (LockFile lock = new LockFile(ref)) {
+            String current = ref.isFile() ? readContentsAsString(ref) : packedValue(ref);
+            if (expected != null && !expected.equals(current)) {
+                throw error("Cannot update %s: it was changed by another gitlet process.",
+                        ref.getName());
+            }
+            lock.commit(contents);
+        } catch (IOException e) {
+            throw error("Cannot write %s: %s", ref.getName(), e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the name of the branch whose loose ref is REF.
+     */
+    private static String branchName(Path ref) {
+        return HEADS_DIR.toPath().relativize(ref).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Returns the packed value of the branch whose loose ref would be REF, or
+     * "" if it is not packed either.
+     */
+    private static String packedValue(File ref) {
+        if (ref.equals(HEAD)) {
+            return "";
         }
-        return filesInHeadsDir.stream().
-                map(fileName -> readContentsAsString(join(HEADS_DIR, fileName))).
-                map(Utils::getCommitByShaHash).collect(Collectors.toList());
+        String packed = PackedRefs.get(HEADS_PREFIX + branchName(ref.toPath()));
+        return packed == null ? "" : packed;
     }
 }
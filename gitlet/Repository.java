@@ -2,6 +2,16 @@ package gitlet;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.IntStream;
+
+import gitlet.StagingArea.Entry;
 
 import static gitlet.StagingArea.*;
 
@@ -29,6 +39,10 @@ public class Repository {
      * The STAGING_AREA File
      */
     public static final File STAGING_AREA = join(GITLET_DIR, "STAGING_AREA");
+    /**
+     * The STAT_CACHE File
+     */
+    public static final File STAT_CACHE = join(GITLET_DIR, "STAT_CACHE");
 
     /**
      * Creates a new Gitlet version-control system in the current directory.
@@ -53,14 +67,14 @@ public class Repository {
                 GITLET_DIR.mkdir();
                 OBJECTS.mkdir();
                 //Init staging area
-                STAGING_AREA.createNewFile();
-                writeObject(STAGING_AREA, new StagingArea());
+                StagingArea.clearStagingArea();
                 //Init refs directory and HEAD file
                 Refs.init();
                 //Initial commit
                 Commit initialCommit = new Commit("initial commit", null, null);
                 String initialCommitId = saveObject(initialCommit);
-                Refs.updateHead(initialCommitId, "master");
+                CommitGraph.add(initialCommitId, initialCommit);
+                Refs.updateHead(initialCommitId, "", "master");
             } catch (IOException e) {
                 System.out.println(e.getMessage());
             }
@@ -71,32 +85,94 @@ public class Repository {
     }
 
     public static void add(String filePath) {
-        File targetFile = join(CWD, filePath);
-        if (!targetFile.exists()) {
-            System.out.println("File does not exist.");
-            return;
+        add(List.of(filePath));
+    }
+
+    /**
+     * Stages the files at FILEPATHS. The files are hashed, compressed and written to
+     * the object store in parallel on Config.getThreads() threads; files whose size
+     * and mtime did not change since they were last hashed are not read at all.
+     */
+    public static void add(List<String> paths) {
+        List<String> filePaths = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            filePaths.add(WorkingTree.normalize(path));
+        }
+        for (String filePath : filePaths) {
+            if (!join(CWD, filePath).exists()) {
+                System.out.println("File does not exist.");
+                return;
+            }
         }
-        byte[] targetFileContent = readContents(targetFile);
-        HashMap<String, byte[]> stagingArea = StagingArea.getNewestStagingArea();
-        if (stagingArea.containsKey(filePath)
-                && Arrays.equals(targetFileContent, stagingArea.get(filePath))) {
+        StatCache statCache = StatCache.load();
+        Map<String, String> blobIds;
+        try (Trace.Phase phase = Trace.phase("store blobs")) {
+            blobIds = saveBlobs(statCache, filePaths);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
             return;
         }
-        /*
-         * If current working version is same as in HEAD commit, remove from staging area
-         */
-        if (isFileTrackedByHeadAndUnchanged(filePath, targetFileContent)) {
-            stagingArea.remove(filePath);
+        statCache.save();
+        TreeMap<String, Entry> stagingArea = StagingArea.getNewestStagingArea();
+        Map<String, String> headTrackedFiles = getHeadCommit().getTrackedFiles();
+        boolean changed = false;
+        for (String filePath : filePaths) {
+            String blobId = blobIds.get(filePath);
+            Entry stagedEntry = stagingArea.get(filePath);
+            if (stagedEntry != null && blobId.equals(stagedEntry.getBlobId())) {
+                continue;
+            }
+            /*
+             * If current working version is same as in HEAD commit, remove from staging area
+             */
+            if (blobId.equals(headTrackedFiles.get(filePath))) {
+                changed |= stagingArea.remove(filePath) != null;
+                continue;
+            }
+            stagingArea.put(filePath, Entry.forAddition(filePath, blobId, join(CWD, filePath)));
+            changed = true;
+        }
+        if (changed) {
             saveStagingArea(stagingArea);
-            return;
         }
+    }
 
-        stagingArea.put(filePath, targetFileContent);
-        saveStagingArea(stagingArea);
+    /**
+     * Stores the files at FILEPATHS in the object store through STATCACHE and
+     * returns their blob ids by path.
+     */
+    private static Map<String, String> saveBlobs(StatCache statCache, List<String> filePaths)
+            throws IOException {
+        Map<String, String> blobIds = new ConcurrentHashMap<>();
+        if (filePaths.size() == 1) {
+            String filePath = filePaths.get(0);
+            blobIds.put(filePath, statCache.saveBlob(filePath, join(CWD, filePath)));
+            return blobIds;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Config.getThreads());
+        try {
+            pool.submit(() -> filePaths.parallelStream().forEach(filePath -> {
+                try {
+                    blobIds.put(filePath, statCache.saveBlob(filePath, join(CWD, filePath)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw error("Cannot add files: %s", e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            throw error("Interrupted while adding files");
+        } finally {
+            pool.shutdown();
+        }
+        return blobIds;
     }
 
     public static void commit(String message) {
-        Map<String, byte[]> stagingArea = StagingArea.getNewestStagingArea();
+        Map<String, Entry> stagingArea = StagingArea.getNewestStagingArea();
         if (stagingArea.isEmpty()) {
             System.out.println("No changes added to the commit.");
             return;
@@ -104,22 +180,24 @@ public class Repository {
         String headCommitId = Refs.getHeadCommitId();
         String activeBranch = Refs.getActiveBranch();
         Commit newCommit = new Commit(message, headCommitId, activeBranch);
-        newCommit.setTrackedFiles(StagingArea.getNewestStagingArea());
+        try (Trace.Phase phase = Trace.phase("build tree")) {
+            newCommit.setTrackedFiles(stagingArea);
+        }
 
-        try {
-            for (String key : stagingArea.keySet()) {
-                saveObject(new Blob(stagingArea.get(key)));
-            }
+        try (Trace.Phase phase = Trace.phase("write commit")) {
             String commitId = saveObject(newCommit);
-            Refs.updateHead(commitId, activeBranch);
+            // Only a commit the branch was moved to belongs in the graph
+            Refs.updateHead(commitId, headCommitId, activeBranch);
+            CommitGraph.add(commitId, newCommit);
         } catch (IOException e) {
             System.out.println(e.getMessage());
         }
-        StagingArea.clearStagingArea();
+        StagingArea.clearCommitted();
     }
 
-    public static void remove(String filepath) {
-        HashMap<String, byte[]> stagingArea = StagingArea.getNewestStagingArea();
+    public static void remove(String path) {
+        String filepath = WorkingTree.normalize(path);
+        TreeMap<String, Entry> stagingArea = StagingArea.getNewestStagingArea();
         Commit headCommit = getHeadCommit();
         Map<String, String> trackedFiles = headCommit.getTrackedFiles();
         if (!stagingArea.containsKey(filepath) && !trackedFiles.containsKey(filepath)) {
@@ -132,8 +210,8 @@ public class Repository {
         }
         //stage for removal and delete from CWD if file is tracked by head commit
         if (trackedFiles.containsKey(filepath)) {
-            stagingArea.put(filepath, null);
-            restrictedDelete(filepath);
+            stagingArea.put(filepath, Entry.forRemoval(filepath));
+            WorkingTree.delete(filepath);
         }
         saveStagingArea(stagingArea);
     }
@@ -164,25 +242,22 @@ public class Repository {
     private static void checkoutCommit(Commit targetCommit, Commit currCommit) {
         Map<String, String> trackedFiles = targetCommit.getTrackedFiles();
         Map<String, String> trackedFilesByHeadCommit = currCommit.getTrackedFiles();
-        List<String> filesInCWD = plainFilenamesIn(CWD);
-        for (String file : filesInCWD) {
-            if (!trackedFilesByHeadCommit.containsKey(file) && trackedFiles.containsKey(file)) {
+        // Only files the target tracks can be overwritten, so only those are checked
+        for (String file : trackedFiles.keySet()) {
+            if (!trackedFilesByHeadCommit.containsKey(file) && join(CWD, file).isFile()) {
                 System.out.println("There is an untracked file in the way; "
                         + "delete it, or add and commit it first.");
                 return;
             }
         }
-        for (String file : trackedFiles.keySet()) {
-            if (filesInCWD.contains(file)) {
-                checkoutFile(trackedFiles.get(file), file);
-            } else {
-                addFileToCWD(trackedFiles.get(file), file);
+        try (Trace.Phase phase = Trace.phase("check out files")) {
+            for (Map.Entry<String, String> file : trackedFiles.entrySet()) {
+                checkoutFile(file.getValue(), file.getKey());
             }
-        }
-        for (String file : trackedFilesByHeadCommit.keySet()) {
-            if (!trackedFiles.containsKey(file)) {
-                File fileToRemove = join(CWD, file);
-                fileToRemove.delete();
+            for (String file : trackedFilesByHeadCommit.keySet()) {
+                if (!trackedFiles.containsKey(file)) {
+                    WorkingTree.delete(file);
+                }
             }
         }
     }
@@ -194,8 +269,7 @@ public class Repository {
             System.out.println("No need to checkout the current branch.");
             return;
         }
-        List<String> allBranchesNames = Refs.getAllBranchesNames();
-        if (!allBranchesNames.contains(branchName)) {
+        if (!Refs.exists(branchName)) {
             System.out.println("No such branch exists.");
             return;
         }
@@ -207,13 +281,12 @@ public class Repository {
 
     private static boolean canMerge(String targetBranch, String currBranch) {
         boolean canMerge = true;
-        HashMap<String, byte[]> sa = StagingArea.getNewestStagingArea();
+        Map<String, Entry> sa = StagingArea.getNewestStagingArea();
         if (!sa.isEmpty()) {
             System.out.println("You have uncommitted changes.");
             canMerge = false;
         }
-        List<String> allBranches = Refs.getAllBranchesNames();
-        if (!allBranches.contains(targetBranch)) {
+        if (!Refs.exists(targetBranch)) {
             System.out.println("A branch with that name does not exist.");
             canMerge = false;
         }
@@ -232,11 +305,14 @@ public class Repository {
         }
         Commit currBranchHead = getHeadCommit();
         Commit targetBranchHead = getHeadCommit(targetBranch);
-        Commit splitPointCommit = findSplitPoint(currBranch, targetBranch);
-        String currBranchHeadID = getCommitId(currBranchHead);
-        String targetBranchHeadID = getCommitId(targetBranchHead);
-        String splitPointCommitID = getCommitId(splitPointCommit);
+        Commit splitPointCommit;
+        try (Trace.Phase phase = Trace.phase("find split point")) {
+            splitPointCommit = findSplitPoint(currBranch, targetBranch);
+        }
         assert splitPointCommit != null;
+        String currBranchHeadID = currBranchHead.getId();
+        String targetBranchHeadID = targetBranchHead.getId();
+        String splitPointCommitID = splitPointCommit.getId();
         if (splitPointCommitID.equals(targetBranchHeadID)) {
             System.out.println("Given branch is an ancestor of the current branch.");
             return;
@@ -246,46 +322,61 @@ public class Repository {
             System.out.println("Current branch fast-forwarded.");
             return;
         }
-        Map<String, String> currBranchTrackedFiles = currBranchHead.getTrackedFiles();
-        Map<String, String> targetBranchTrackedFiles = targetBranchHead.getTrackedFiles();
-        Map<String, String> splitPointTrackedFiles = splitPointCommit.getTrackedFiles();
+        // Only files changed since the split point on either side need merging
+        TreeMap<String, String[]> changedFiles = new TreeMap<>();
+        try (Trace.Phase phase = Trace.phase("diff trees")) {
+            for (Map.Entry<String, String[]> change
+                    : splitPointCommit.diff(currBranchHead).entrySet()) {
+                String[] ids = change.getValue();
+                changedFiles.put(change.getKey(), new String[]{ids[0], ids[1], ids[0]});
+            }
+            for (Map.Entry<String, String[]> change
+                    : splitPointCommit.diff(targetBranchHead).entrySet()) {
+                String[] ids = change.getValue();
+                changedFiles.computeIfAbsent(change.getKey(),
+                        k -> new String[]{ids[0], ids[0], null})[2] = ids[1];
+            }
+        }
         // check for untracked files
-        List<String> filesInCWD = plainFilenamesIn(CWD);
-        for (String file : filesInCWD) {
-            if (!currBranchTrackedFiles.containsKey(file)
-                    && targetBranchTrackedFiles.containsKey(file)) {
+        for (Map.Entry<String, String[]> file : changedFiles.entrySet()) {
+            if (file.getValue()[1] == null && file.getValue()[2] != null
+                    && join(CWD, file.getKey()).isFile()) {
                 System.out.println("There is an untracked file in the way; "
                         + "delete it, or add and commit it first.");
                 return;
             }
         }
-        boolean isConflicted = merge(
-                targetBranch,
-                targetBranchHead,
-                currBranchTrackedFiles,
-                targetBranchTrackedFiles,
-                splitPointTrackedFiles
-        );
+        boolean isConflicted;
+        try (Trace.Phase phase = Trace.phase("merge files")) {
+            isConflicted = merge(targetBranch, targetBranchHead, changedFiles);
+        }
         String msg = "Merged " + targetBranch + " into " + currBranch + ".";
-        commitMerge(msg, getCommitId(currBranchHead), getCommitId(targetBranchHead));
+        commitMerge(msg, currBranchHeadID, targetBranchHeadID);
         if (isConflicted) {
             System.out.println("Encountered a merge conflict.");
         }
     }
 
+    /**
+     * Merges the files in CHANGEDFILES, which maps each file changed since the
+     * split point to its {split point, current branch, target branch} blob ids.
+     */
     private static boolean merge(
             String targetBranch,
             Commit targetBranchHead,
-            Map<String, String> currBranchTrackedFiles,
-            Map<String, String> targetBranchTrackedFiles,
-            Map<String, String> splitPointTrackedFiles) {
+            Map<String, String[]> changedFiles) {
         boolean isConflicted = false;
-        for (String file : currBranchTrackedFiles.keySet()) {
-            String fileAtSplitPointHash = splitPointTrackedFiles.get(file);
-            String fileAtCurrBranchHash = currBranchTrackedFiles.get(file);
-            String fileAtTargetBranchHash = targetBranchTrackedFiles.get(file);
+        List<String> filesToAdd = new ArrayList<>();
+        for (Map.Entry<String, String[]> changedFile : changedFiles.entrySet()) {
+            String file = changedFile.getKey();
+            String fileAtSplitPointHash = changedFile.getValue()[0];
+            String fileAtCurrBranchHash = changedFile.getValue()[1];
+            String fileAtTargetBranchHash = changedFile.getValue()[2];
             File f = join(CWD, file);
-            if (fileAtSplitPointHash != null) {
+            if (fileAtCurrBranchHash != null) {
+                if (fileAtSplitPointHash == null) {
+                    continue;
+                }
                 if (fileAtSplitPointHash.equals(fileAtCurrBranchHash)
                         && fileAtTargetBranchHash == null) {
                     // unmodified in curr branch, absent in target branch
@@ -293,99 +384,197 @@ public class Repository {
                 } else if (fileAtSplitPointHash.equals(fileAtCurrBranchHash)
                         && !fileAtSplitPointHash.equals(fileAtTargetBranchHash)) {
                     // unmodified in curr branch, modified in target branch
-                    basicCheckout(file, getCommitId(targetBranchHead));
-                    add(file);
+                    basicCheckout(file, targetBranchHead.getId());
+                    filesToAdd.add(file);
                 } else if (fileAtTargetBranchHash == null
                         || !fileAtCurrBranchHash.equals(fileAtTargetBranchHash)
                         && !fileAtTargetBranchHash.equals(fileAtSplitPointHash)) {
-                    // present at split point, modified in different ways (conflict)
-                    String currBranchFileHash = currBranchTrackedFiles.get(file);
-                    String targetBranchFileHash = targetBranchTrackedFiles.get(file);
-                    File currBranchFileVersion = currBranchFileHash != null
-                            ? getFileByShaHash(currBranchFileHash)
-                            : null;
-                    File targetBranchFileVersion = targetBranchFileHash != null
-                            ? getFileByShaHash(targetBranchFileHash)
-                            : null;
-                    String mergeContent = getConflictedFilesContent(
-                            currBranchFileVersion,
-                            targetBranchFileVersion
-                    );
-                    writeContents(f, mergeContent);
-                    add(file);
-                    isConflicted = true;
+                    // present at split point, modified in different ways: merge the lines
+                    try {
+                        isConflicted |= Merge3.merge(fileAtSplitPointHash,
+                                fileAtCurrBranchHash, fileAtTargetBranchHash, f);
+                    } catch (IOException e) {
+                        System.out.println(e.getMessage());
+                        continue;
+                    }
+                    filesToAdd.add(file);
                 }
-            }
-            targetBranchTrackedFiles.remove(file);
-        }
-        for (String file : new ArrayList<>(targetBranchTrackedFiles.keySet())) {
-            String fileAtSplitPointHash = splitPointTrackedFiles.get(file);
-            String fileAtTargetBranchHash = targetBranchTrackedFiles.get(file);
-            if (fileAtSplitPointHash != null
-                    && fileAtSplitPointHash.equals(fileAtTargetBranchHash)) {
-                targetBranchTrackedFiles.remove(file);
-            }
-            //absent from split point and curr branch, present in target branch
-            if (fileAtSplitPointHash == null) {
+            } else if (fileAtTargetBranchHash != null && fileAtSplitPointHash == null) {
+                //absent from split point and curr branch, present in target branch
                 basicCheckout(file, Refs.getHeadCommitId(targetBranch));
-                add(file);
+                filesToAdd.add(file);
             }
         }
+        if (!filesToAdd.isEmpty()) {
+            add(filesToAdd);
+        }
         return isConflicted;
     }
 
-    private static String getConflictedFilesContent(
-            File currBranchVersion,
-            File targetBranchVersion
-    ) {
-        String currBranchVersionContent = currBranchVersion != null
-                ? getSerializedFileContent(currBranchVersion)
-                : "";
-        String targetBranchVersionContent = targetBranchVersion != null
-                ? getSerializedFileContent(targetBranchVersion)
-                : "";
-        return "<<<<<<< HEAD\n"
-                + currBranchVersionContent
-                + "=======\n"
-                + targetBranchVersionContent
-                + ">>>>>>>\n";
-    }
-
-    private static Commit findSplitPoint(String currBranch, String targetBranch) {
-        List<String> currBranchCommitHistory =
-                getCommitHistory(Refs.getHeadCommitId(currBranch));
-        List<String> targetBranchCommitHistory =
-                getCommitHistory(Refs.getHeadCommitId(targetBranch));
-        for (String c : targetBranchCommitHistory) {
-            if (currBranchCommitHistory.contains(c)) {
-                return getCommitByShaHash(c);
-            }
-        }
-        return null;
-    }
-
-    private static List<String> getCommitHistory(String commitID) {
-        List<String> res = new ArrayList<>();
-        Queue<String> commitQueue = new ArrayDeque<>();
-        commitQueue.add(commitID);
-        while (commitQueue.peek() != null) {
-            String currCommitID = commitQueue.poll();
-            if (res.contains(currCommitID)) {
-                continue;
+    /**
+     * Prints the changes from the index to the working tree, or with CACHED, from
+     * the head commit to the index. The index is the head commit's files with the
+     * staged additions and removals applied.
+     */
+    public static void diff(boolean cached) {
+        Map<String, String> headFiles = getHeadCommit().getTrackedFiles();
+        Map<String, String> indexFiles = new TreeMap<>(headFiles);
+        for (Entry entry : StagingArea.getNewestStagingArea().values()) {
+            if (entry.isRemoval()) {
+                indexFiles.remove(entry.getPath());
             } else {
-                res.add(currCommitID);
+                indexFiles.put(entry.getPath(), entry.getBlobId());
+            }
+        }
+        SortedMap<String, String[]> changes = new TreeMap<>();
+        if (cached) {
+            for (Map.Entry<String, String> file : indexFiles.entrySet()) {
+                String headId = headFiles.get(file.getKey());
+                if (!file.getValue().equals(headId)) {
+                    changes.put(file.getKey(), new String[]{headId, file.getValue()});
+                }
+            }
+            for (Map.Entry<String, String> file : headFiles.entrySet()) {
+                if (!indexFiles.containsKey(file.getKey())) {
+                    changes.put(file.getKey(), new String[]{file.getValue(), null});
+                }
+            }
+            printDiff(changes, false);
+            return;
+        }
+        StatCache statCache = StatCache.load();
+        try (Trace.Phase phase = Trace.phase("scan working tree")) {
+            for (Map.Entry<String, String> file : indexFiles.entrySet()) {
+                File workingFile = join(CWD, file.getKey());
+                String workingId = workingFile.isFile()
+                        ? statCache.getBlobId(file.getKey(), workingFile) : null;
+                if (!file.getValue().equals(workingId)) {
+                    changes.put(file.getKey(), new String[]{file.getValue(), workingId});
+                }
             }
-            Commit currCommit = getCommitByShaHash(currCommitID);
-            String parentIdOne = currCommit.getParentId();
-            String parentIdTwo = currCommit.getSecondParentId();
-            if (parentIdOne != null) {
-                commitQueue.add(parentIdOne);
+        }
+        statCache.save();
+        printDiff(changes, true);
+    }
+
+    /**
+     * Prints the changes from the commit OLDCOMMITID to the commit NEWCOMMITID.
+     */
+    public static void diff(String oldCommitId, String newCommitId) {
+        Commit oldCommit = getCommitByShaHash(oldCommitId);
+        Commit newCommit = getCommitByShaHash(newCommitId);
+        if (oldCommit == null || newCommit == null) {
+            System.out.println("No commit with that id exists.");
+            return;
+        }
+        SortedMap<String, String[]> changes;
+        try (Trace.Phase phase = Trace.phase("diff trees")) {
+            changes = oldCommit.diff(newCommit);
+        }
+        printDiff(changes, false);
+    }
+
+    /**
+     * Prints the unified diff of each file in CHANGES, which maps paths to their
+     * {old, new} blob ids. Files are diffed in parallel and printed in path
+     * order. With FROMWORKINGTREE, the new version is read from the working file.
+     */
+    private static void printDiff(SortedMap<String, String[]> changes, boolean fromWorkingTree) {
+        ForkJoinPool pool = new ForkJoinPool(Config.getThreads());
+        try (Trace.Phase phase = Trace.phase("diff files")) {
+            List<ForkJoinTask<byte[]>> outputs = new ArrayList<>();
+            for (Map.Entry<String, String[]> change : changes.entrySet()) {
+                outputs.add(pool.submit(() -> diffFile(change.getKey(), change.getValue()[0],
+                        change.getValue()[1], fromWorkingTree)));
             }
-            if (parentIdTwo != null) {
-                commitQueue.add(parentIdTwo);
+            for (ForkJoinTask<byte[]> output : outputs) {
+                System.out.write(output.get());
             }
+            System.out.flush();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof UncheckedIOException
+                    ? e.getCause().getCause() : e.getCause();
+            System.out.println(cause.getMessage());
+        } catch (InterruptedException e) {
+            throw error("Interrupted while diffing files");
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static byte[] diffFile(String path, String oldId, String newId,
+                                   boolean fromWorkingTree) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Lines oldLines = Lines.read(oldId);
+             Lines newLines = fromWorkingTree && newId != null
+                     ? Lines.read(join(CWD, path)) : Lines.read(newId)) {
+            Diff.writeUnified(path, oldLines, oldId != null, newLines, newId != null, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return res;
+        return out.toByteArray();
+    }
+
+    static Commit findSplitPoint(String currBranch, String targetBranch) {
+        int splitPoint = findMergeBase(
+                CommitGraph.getPosition(Refs.getHeadCommitId(currBranch)),
+                CommitGraph.getPosition(Refs.getHeadCommitId(targetBranch))
+        );
+        if (splitPoint == CommitGraph.NONE) {
+            return null;
+        }
+        return getCommitByShaHash(CommitGraph.getId(splitPoint));
+    }
+
+    /**
+     * Returns the commit-graph position of the latest common ancestor of the commits
+     * at FIRST and SECOND, or NONE if they share no history. Both histories are walked
+     * at once, always expanding the commit with the highest generation number. Parents
+     * have lower generations than their children, so the first commit reached from both
+     * sides is a common ancestor that no other common ancestor descends from, and nothing
+     * below its generation is ever visited.
+     */
+    private static int findMergeBase(int first, int second) {
+        BitSet reachedFromFirst = new BitSet();
+        BitSet reachedFromSecond = new BitSet();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                Comparator.comparing(CommitGraph::getGeneration)
+                        .reversed()
+                        .thenComparing(Comparator.naturalOrder())
+        );
+        queue.add(first);
+        queue.add(second);
+        reachedFromFirst.set(first);
+        reachedFromSecond.set(second);
+        while (!queue.isEmpty()) {
+            int curr = queue.poll();
+            boolean isInFirst = reachedFromFirst.get(curr);
+            boolean isInSecond = reachedFromSecond.get(curr);
+            if (isInFirst && isInSecond) {
+                return curr;
+            }
+            for (int parent : new int[]{
+                CommitGraph.getParent(curr), CommitGraph.getSecondParent(curr)}) {
+                if (parent == CommitGraph.NONE) {
+                    continue;
+                }
+                boolean isNew = false;
+                if (isInFirst && !reachedFromFirst.get(parent)) {
+                    reachedFromFirst.set(parent);
+                    isNew = true;
+                }
+                if (isInSecond && !reachedFromSecond.get(parent)) {
+                    reachedFromSecond.set(parent);
+                    isNew = true;
+                }
+                if (isNew) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return CommitGraph.NONE;
     }
 
     private static void commitMerge(
@@ -393,7 +582,7 @@ public class Repository {
             String currBranchHeadID,
             String targetBranchHeadID
     ) {
-        Map<String, byte[]> stagingArea = StagingArea.getNewestStagingArea();
+        Map<String, Entry> stagingArea = StagingArea.getNewestStagingArea();
         if (stagingArea.isEmpty()) {
             System.out.println("No changes added to the commit.");
             return;
@@ -405,18 +594,19 @@ public class Repository {
                 targetBranchHeadID,
                 activeBranch
         );
-        newCommit.setTrackedFiles(StagingArea.getNewestStagingArea());
+        try (Trace.Phase phase = Trace.phase("build tree")) {
+            newCommit.setTrackedFiles(stagingArea);
+        }
 
-        try {
-            for (String key : stagingArea.keySet()) {
-                saveObject(new Blob(stagingArea.get(key)));
-            }
+        try (Trace.Phase phase = Trace.phase("write commit")) {
             String commitId = saveObject(newCommit);
-            Refs.updateHead(commitId, activeBranch);
+            // Only a commit the branch was moved to belongs in the graph
+            Refs.updateHead(commitId, currBranchHeadID, activeBranch);
+            CommitGraph.add(commitId, newCommit);
         } catch (IOException e) {
             System.out.println(e.getMessage());
         }
-        StagingArea.clearStagingArea();
+        StagingArea.clearCommitted();
     }
 
     public static void removeBranch(String branchName) {
@@ -425,17 +615,11 @@ public class Repository {
             System.out.println("Cannot remove the current branch.");
             return;
         }
-        List<String> allBranchesNames = Refs.getAllBranchesNames();
-        if (!allBranchesNames.contains(branchName)) {
+        if (!Refs.exists(branchName)) {
             System.out.println("A branch with that name does not exist.");
             return;
         }
-        File branchPointer = join(Refs.HEADS_DIR, branchName);
-        try {
-            branchPointer.delete();
-        } catch (SecurityException e) {
-            System.out.println(e.getMessage());
-        }
+        Refs.deleteBranch(branchName);
     }
 
     public static void reset(String commitID) {
@@ -446,123 +630,292 @@ public class Repository {
             return;
         }
         checkoutCommit(targetCommit, currCommit);
-        Refs.updateHead(commitID, Refs.getActiveBranch());
+        Refs.updateHead(targetCommit.getId(), currCommit.getId(), Refs.getActiveBranch());
         StagingArea.clearStagingArea();
     }
 
     public static void branch(String branchName) {
-        List<String> filesInHeadsDir = plainFilenamesIn(Refs.HEADS_DIR);
-        if (filesInHeadsDir != null && filesInHeadsDir.contains(branchName)) {
+        if (Refs.exists(branchName)) {
             System.out.println("A branch with that name already exists.");
             return;
         }
-        String headCommitID = getCommitId(getHeadCommit());
+        String headCommitID = Refs.getHeadCommitId();
         Refs.createNewBranch(branchName, headCommitID);
     }
 
-    public static void log(Commit commit, String commitID) {
-        commit.log(commitID);
-        if (commit.getParentId() == null) {
-            return;
-        }
-        String parentId = commit.getParentId();
-        Commit parentCommit = commit.getParentCommit();
-        log(parentCommit, parentId);
+    public static void log() {
+        log(-1, null, null, true, false);
     }
 
-    public static void log() {
-        String headId = Refs.getHeadCommitId();
-        Commit headCommit = getHeadCommit();
-        log(headCommit, headId);
+    /**
+     * Prints the history of the head commit, newest first, following first
+     * parents only if FIRSTPARENT, and drawing the commit graph if GRAPH. Only
+     * commits made between SINCE and UNTIL (in milliseconds) are printed if they
+     * are not null, and at most LIMIT of them unless it is negative. History is
+     * walked lazily, so the first entries print before the rest is read.
+     */
+    public static void log(int limit, Long since, Long until, boolean firstParent, boolean graph) {
+        PrintWriter out = logWriter();
+        LogGraph logGraph = graph ? new LogGraph() : null;
+        int printed = 0;
+        try (Trace.Phase phase = Trace.phase("walk history")) {
+            LogWalk walk = new LogWalk(CommitGraph.getPosition(Refs.getHeadCommitId()), firstParent);
+            while (walk.hasNext() && printed != limit) {
+                int pos = walk.nextInt();
+                long timestamp = CommitGraph.getTimestamp(pos).getTime();
+                boolean shown = (since == null || timestamp >= since)
+                        && (until == null || timestamp <= until);
+                List<String> lines = shown ? logLines(pos) : null;
+                if (logGraph != null) {
+                    logGraph.print(out, pos, lines, shown);
+                } else if (shown) {
+                    lines.forEach(out::println);
+                }
+                if (shown) {
+                    printed++;
+                }
+            }
+        }
+        out.flush();
     }
 
+    /**
+     * Prints every commit ever made, including commits only reachable through
+     * second parents or from no branch at all, newest first.
+     */
     public static void globalLog() {
-        HashMap<String, Commit> allCommits = getAllCommits();
-        for (String key : allCommits.keySet()) {
-            Commit c = allCommits.get(key);
-            c.log(key);
+        PrintWriter out = logWriter();
+        try (Trace.Phase phase = Trace.phase("walk history")) {
+            allCommits().forEachOrdered(pos -> logLines(pos).forEach(out::println));
         }
+        out.flush();
     }
 
+    /**
+     * Prints the ids of all commits with the message MSG.
+     */
     public static void find(String msg) {
-        HashMap<String, Commit> allCommits = getAllCommits();
-        boolean atLeastOneMsgFound = false;
-        for (String key : allCommits.keySet()) {
-            Commit commit = allCommits.get(key);
-            if (commit.getMessage().equals(msg)) {
-                if (!atLeastOneMsgFound) {
-                    atLeastOneMsgFound = true;
+        find(msg, "exact", null, null, null);
+    }
+
+    /**
+     * Prints the ids of all commits whose message matches TEXT, in the order of
+     * global-log: by MODE "exact", equal to it; "substring", containing it;
+     * "token", containing its words; "regex", containing a match of it. Null
+     * TEXT matches every message. Only commits by AUTHOR, and made between
+     * SINCE and UNTIL (in milliseconds), are printed if they are not null.
+     * Candidates are narrowed down with the message index, and their messages
+     * compared in parallel.
+     */
+    public static void find(String text, String mode, String author, Long since, Long until) {
+        int[] candidates = null;
+        Predicate<String> matches = message -> true;
+        try (Trace.Phase phase = Trace.phase("search index")) {
+            if (text != null) {
+                switch (mode) {
+                    case "exact":
+                        candidates = lookupWords(text);
+                        matches = message -> message.equals(text);
+                        break;
+                    case "substring":
+                        // Words cut off at either end of TEXT can be part of longer words
+                        candidates = lookupWords(text.replaceAll(
+                                "^[\\p{L}\\p{Nd}]+|[\\p{L}\\p{Nd}]+$", ""));
+                        matches = message -> message.contains(text);
+                        break;
+                    case "token":
+                        candidates = lookupWords(text);
+                        if (candidates == null) {
+                            candidates = new int[0];
+                        }
+                        break;
+                    default:
+                        Pattern pattern;
+                        try {
+                            pattern = Pattern.compile(text);
+                        } catch (PatternSyntaxException e) {
+                            System.out.println("Invalid regular expression: " + text);
+                            return;
+                        }
+                        matches = message -> pattern.matcher(message).find();
                 }
-                System.out.println(key);
+            }
+            if (author != null) {
+                candidates = intersect(candidates, MessageIndex.lookup(MessageIndex.authorKey(author)));
             }
         }
-        if (!atLeastOneMsgFound) {
+        IntStream positions;
+        if (candidates == null) {
+            positions = allCommits();
+        } else {
+            int[] found = candidates;
+            positions = IntStream.range(0, found.length).map(i -> found[found.length - 1 - i]);
+        }
+        Predicate<String> messageMatches = matches;
+        boolean[] atLeastOneMsgFound = new boolean[1];
+        try (Trace.Phase phase = Trace.phase("walk history")) {
+            positions.parallel()
+                    .filter(pos -> since == null || CommitGraph.getTimestamp(pos).getTime() >= since)
+                    .filter(pos -> until == null || CommitGraph.getTimestamp(pos).getTime() <= until)
+                    .filter(pos -> messageMatches.test(CommitGraph.getMessage(pos)))
+                    .forEachOrdered(pos -> {
+                        atLeastOneMsgFound[0] = true;
+                        System.out.println(CommitGraph.getId(pos));
+                    });
+        }
+        if (!atLeastOneMsgFound[0]) {
             System.out.println("Found no commit with that message.");
         }
     }
 
-    private static HashMap<String, Commit> getAllCommits() {
-        List<Commit> allHeadCommits = Refs.getAllBranchesHeadsCommits();
-        HashMap<String, Commit> allCommits = new HashMap<>();
-        for (Commit c : allHeadCommits) {
-            getAllCommits(c, allCommits);
+    /**
+     * Returns the positions of the commits whose messages contain all words of
+     * TEXT, or null for all commits if TEXT has no words.
+     */
+    private static int[] lookupWords(String text) {
+        int[] positions = null;
+        for (String word : MessageIndex.words(text)) {
+            positions = intersect(positions, MessageIndex.lookup(word));
         }
-        return allCommits;
+        return positions;
     }
 
-    private static void getAllCommits(Commit commit, HashMap<String, Commit> allCommits) {
-        String commitID = getCommitId(commit);
-        String parentID = commit.getParentId();
-        allCommits.put(commitID, commit);
-        if (parentID == null || allCommits.containsKey(parentID)) {
-            return;
+    /**
+     * Returns the positions in both ascending arrays A and B, where null stands
+     * for all positions.
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        if (a == null || b == null) {
+            return a == null ? b : a;
+        }
+        int[] both = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length;) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                both[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, count);
+    }
+
+    private static List<String> logLines(int pos) {
+        return Commit.logLines(CommitGraph.getId(pos), CommitGraph.getTimestamp(pos),
+                CommitGraph.getMessage(pos));
+    }
+
+    /**
+     * Returns a writer to System.out that writes log entries in chunks of
+     * ObjectStore.BUFFER_SIZE characters rather than line by line.
+     */
+    private static PrintWriter logWriter() {
+        return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out),
+                ObjectStore.BUFFER_SIZE));
+    }
+
+    /**
+     * Returns the commit-graph positions of all commits, newest first.
+     */
+    private static IntStream allCommits() {
+        int size = CommitGraph.size();
+        return IntStream.range(0, size).map(i -> size - 1 - i);
+    }
+
+    /**
+     * Packs all objects into a single packfile, delta-compressing similar blobs and trees.
+     */
+    public static void gc() {
+        Map<String, String> pathHints = new HashMap<>();
+        try (Trace.Phase phase = Trace.phase("collect paths")) {
+            for (int pos = 0; pos < CommitGraph.size(); pos++) {
+                Commit commit = getCommitByShaHash(CommitGraph.getId(pos));
+                if (commit.getTreeId() != null) {
+                    Tree.addPathHints(commit.getTreeId(), pathHints);
+                } else {
+                    for (Map.Entry<String, String> file : commit.getTrackedFiles().entrySet()) {
+                        pathHints.putIfAbsent(file.getValue(), file.getKey());
+                    }
+                }
+            }
+        }
+        try (Trace.Phase phase = Trace.phase("pack objects")) {
+            ObjectStore.pruneTemporaryFiles();
+            Pack.packAll(pathHints);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+        try (Trace.Phase phase = Trace.phase("index messages")) {
+            MessageIndex.rebuild();
+        }
+        try (Trace.Phase phase = Trace.phase("pack refs")) {
+            Refs.pack();
         }
-        Commit parentCommit = commit.getParentCommit();
-        getAllCommits(parentCommit, allCommits);
     }
 
     public static void status() {
         String activeBranchName = Refs.getActiveBranch();
         List<String> allBranchesNames = Refs.getAllBranchesNames();
-        HashMap<String, byte[]> sa = StagingArea.getNewestStagingArea();
+        TreeMap<String, Entry> sa = StagingArea.getNewestStagingArea();
         Commit head = getHeadCommit();
-        Map<String, String> trackedByHead = head.getTrackedFiles();
-        List<String> filesInCwd = plainFilenamesIn(CWD);
+        Map<String, String> trackedByHead = new TreeMap<>(head.getTrackedFiles());
         TreeSet<String> modified = new TreeSet<>();
         TreeSet<String> deleted = new TreeSet<>();
         TreeSet<String> untrackedUnstaged = new TreeSet<>();
+        StatCache statCache = StatCache.load();
+
+        // Files are hashed while the working tree is still being walked. Only files
+        // whose size or mtime changed since they were last hashed are read.
+        Map<String, String> filesInCwd = new ConcurrentHashMap<>();
+        try (Trace.Phase phase = Trace.phase("scan working tree")) {
+            WorkingTree.load().walk(fileName ->
+                    filesInCwd.put(fileName, statCache.getBlobId(fileName, join(CWD, fileName))));
+            // Tracked and staged files are checked even if they are ignored
+            Set<String> trackedOrStaged = new TreeSet<>(trackedByHead.keySet());
+            trackedOrStaged.addAll(sa.keySet());
+            for (String fileName : trackedOrStaged) {
+                File file = join(CWD, fileName);
+                if (!filesInCwd.containsKey(fileName) && file.isFile()) {
+                    filesInCwd.put(fileName, statCache.getBlobId(fileName, file));
+                }
+            }
+        }
 
-        for (String fileName : filesInCwd) {
-            boolean isTrackedByHead = isFileTrackedByHead(fileName);
+        for (String fileName : new TreeSet<>(filesInCwd.keySet())) {
+            boolean isTrackedByHead = trackedByHead.containsKey(fileName);
             boolean isStaged = sa.containsKey(fileName);
-            byte[] fileContent = readContents(join(CWD, fileName));
+            String fileId = filesInCwd.get(fileName);
             if (isTrackedByHead && !isStaged) {
-                boolean isTrackedAndUnmodified =
-                        isFileTrackedByHeadAndUnchanged(fileName, fileContent, trackedByHead);
-                if (!isTrackedAndUnmodified) {
+                if (!fileId.equals(trackedByHead.get(fileName))) {
                     modified.add(fileName + " (modified)");
                     trackedByHead.remove(fileName);
                 }
             }
             if (isStaged) {
-                byte[] stagedContent = sa.get(fileName);
-                if (!Arrays.equals(fileContent, stagedContent) && stagedContent != null) {
+                Entry stagedEntry = sa.get(fileName);
+                if (!stagedEntry.isRemoval() && !fileId.equals(stagedEntry.getBlobId())) {
                     modified.add(fileName + " (modified)");
                     sa.remove(fileName);
                 }
             }
-            if (!isTrackedByHead && (!isStaged || sa.get(fileName) == null)) {
+            Entry remainingEntry = sa.get(fileName);
+            if (!isTrackedByHead && (remainingEntry == null || remainingEntry.isRemoval())) {
                 untrackedUnstaged.add(fileName);
                 sa.remove(fileName);
             }
         }
+        statCache.retainAll(filesInCwd.keySet());
+        statCache.save();
 
-        for (String fileName : sa.keySet()) {
-            byte[] fileContent = sa.get(fileName);
-            File file = join(CWD, fileName);
-            if (fileContent != null && !file.exists()) {
-                deleted.add(fileName + " (deleted)");
-                sa.remove(fileName);
+        for (Entry entry : new ArrayList<>(sa.values())) {
+            File file = join(CWD, entry.getPath());
+            if (!entry.isRemoval() && !file.exists()) {
+                deleted.add(entry.getPath() + " (deleted)");
+                sa.remove(entry.getPath());
             }
         }
 
@@ -1,39 +1,266 @@
 package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 
 import static gitlet.Utils.*;
 
-public class StagingArea implements Dumpable {
-    private final HashMap<String, byte[]> stagingArea;
+/**
+ * The staging area (index) of a gitlet repository.
+ * Every entry records the path, blob id, size, mtime and mode of a staged file.
+ * The file content itself is written to the object store when the file is added,
+ * so the index stays small no matter how large the staged files are.
+ * An entry without a blob id marks a file staged for removal.
+ *
+ * @author apotocki
+ */
+public class StagingArea implements Serializable {
+    /**
+     * Matches the staging areas Java-serialized by older versions of gitlet
+     */
+    private static final long serialVersionUID = -4824557893131894763L;
+    /**
+     * First two bytes of a Java-serialized staging area
+     */
+    private static final int SERIALIZED_MAGIC = 0xaced;
+    /**
+     * Magic number at the start of the index file ("GLIX")
+     */
+    private static final int INDEX_SIGNATURE = 0x474c4958;
+    /**
+     * Version of the index file format
+     */
+    private static final int INDEX_VERSION = 1;
+    /**
+     * Mode of a regular file
+     */
+    static final int REGULAR_FILE = 0100644;
+    /**
+     * Mode of an executable file
+     */
+    static final int EXECUTABLE_FILE = 0100755;
+
+    /**
+     * Staged file contents by path, null for a removal. Only set in staging
+     * areas written by older versions of gitlet, which are read by readLegacy.
+     */
+    private HashMap<String, byte[]> stagingArea;
+
+    /**
+     * A single entry of the index.
+     */
+    public static class Entry {
+        private final String path;
+        private final String blobId;
+        private final long size;
+        private final long mtime;
+        private final int mode;
+
+        Entry(String path, String blobId, long size, long mtime, int mode) {
+            this.path = path;
+            this.blobId = blobId;
+            this.size = size;
+            this.mtime = mtime;
+            this.mode = mode;
+        }
+
+        /**
+         * Creates an entry staging FILE, stored under BLOBID, for addition.
+         */
+        static Entry forAddition(String path, String blobId, File file) {
+            int mode = file.canExecute() ? EXECUTABLE_FILE : REGULAR_FILE;
+            return new Entry(path, blobId, file.length(), file.lastModified(), mode);
+        }
+
+        /**
+         * Creates an entry staging PATH for removal.
+         */
+        static Entry forRemoval(String path) {
+            return new Entry(path, null, 0, 0, 0);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getBlobId() {
+            return blobId;
+        }
+
+        public long getSize() {
+            return size;
+        }
 
-    public StagingArea() {
-        stagingArea = new HashMap<>();
+        public long getMtime() {
+            return mtime;
+        }
+
+        public int getMode() {
+            return mode;
+        }
+
+        public boolean isRemoval() {
+            return blobId == null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return path.equals(other.path) && Objects.equals(blobId, other.blobId)
+                    && size == other.size && mtime == other.mtime && mode == other.mode;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, blobId, size, mtime, mode);
+        }
     }
 
-    public StagingArea(HashMap<String, byte[]> stagingArea) {
-        this.stagingArea = stagingArea;
+    /**
+     * The index as this process last read or wrote it. Changes saved by the
+     * command are the differences from it.
+     */
+    private static TreeMap<String, Entry> lastRead;
+
+    public static TreeMap<String, Entry> getNewestStagingArea() {
+        TreeMap<String, Entry> stagingArea = read();
+        lastRead = new TreeMap<>(stagingArea);
+        return stagingArea;
     }
 
-    public HashMap<String, byte[]> getStagingArea() {
+    private static TreeMap<String, Entry> read() {
+        TreeMap<String, Entry> stagingArea = new TreeMap<>();
+        File index = Repository.STAGING_AREA;
+        if (!index.exists() || index.length() == 0) {
+            return stagingArea;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(index.toPath())))) {
+            in.mark(2);
+            if (in.readUnsignedShort() == SERIALIZED_MAGIC) {
+                return readLegacy(index);
+            }
+            in.reset();
+            if (in.readInt() != INDEX_SIGNATURE || in.readInt() != INDEX_VERSION) {
+                throw error("Unrecognized index file format.");
+            }
+            int count = in.readInt();
+            byte[] rawId = new byte[UID_LENGTH / 2];
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                boolean isRemoval = in.readBoolean();
+                in.readFully(rawId);
+                long size = in.readLong();
+                long mtime = in.readLong();
+                int mode = in.readInt();
+                String blobId = isRemoval ? null : toHex(rawId);
+                stagingArea.put(path, new Entry(path, blobId, size, mtime, mode));
+            }
+        } catch (IOException e) {
+            throw error("Cannot read index: %s", e.getMessage());
+        }
         return stagingArea;
     }
 
-    public static HashMap<String, byte[]> getNewestStagingArea() {
-        StagingArea sa = readObject(Repository.STAGING_AREA, StagingArea.class);
-        return sa.getStagingArea();
+    /**
+     * Converts the Java-serialized staging area in INDEX, which holds whole file
+     * contents, to entries, storing each staged content as a blob.
+     */
+    private static TreeMap<String, Entry> readLegacy(File index) throws IOException {
+        TreeMap<String, Entry> stagingArea = new TreeMap<>();
+        HashMap<String, byte[]> contents = readObject(index, StagingArea.class).stagingArea;
+        for (Map.Entry<String, byte[]> staged : contents.entrySet()) {
+            byte[] content = staged.getValue();
+            if (content == null) {
+                stagingArea.put(staged.getKey(), Entry.forRemoval(staged.getKey()));
+            } else {
+                stagingArea.put(staged.getKey(), new Entry(staged.getKey(), Blob.save(content),
+                        content.length, 0, REGULAR_FILE));
+            }
+        }
+        return stagingArea;
     }
 
-    public static void saveStagingArea(HashMap<String, byte[]> sa) {
-        writeObject(Repository.STAGING_AREA, new StagingArea(sa));
+    /**
+     * Saves SA, the index as last read by getNewestStagingArea and changed by
+     * the command, under the index lock. If another process changed the index
+     * since it was read, only the entries the command changed are applied to
+     * the new index, and only where the other process left them as they were
+     * read, so that neither process loses its changes.
+     */
+    public static void saveStagingArea(Map<String, Entry> sa) {
+        save(sa, lastRead);
     }
 
+    /**
+     * Empties the index, dropping entries staged by other processes as well.
+     */
     public static void clearStagingArea() {
-        HashMap<String, byte[]> stagingArea = getNewestStagingArea();
-        stagingArea.clear();
-        saveStagingArea(stagingArea);
+        save(new TreeMap<>(), null);
     }
 
-    public void dump() {
+    /**
+     * Unstages the entries the command read from the index, after they were
+     * committed, keeping any staged by other processes in the meantime.
+     */
+    public static void clearCommitted() {
+        saveStagingArea(new TreeMap<>());
+    }
 
+    private static void save(Map<String, Entry> sa, TreeMap<String, Entry> base) {
+        // The blobs staged must be in place before the index names them
+        ObjectStore.flush();
+        try (LockFile lock = new LockFile(Repository.STAGING_AREA)) {
+            if (base != null) {
+                TreeMap<String, Entry> current = read();
+                if (!current.equals(base)) {
+                    // A path the other process changed too keeps its entry
+                    for (Entry entry : sa.values()) {
+                        String path = entry.getPath();
+                        if (!entry.equals(base.get(path))
+                                && Objects.equals(current.get(path), base.get(path))) {
+                            current.put(path, entry);
+                        }
+                    }
+                    for (String path : base.keySet()) {
+                        if (!sa.containsKey(path)
+                                && Objects.equals(current.get(path), base.get(path))) {
+                            current.remove(path);
+                        }
+                    }
+                    sa = current;
+                }
+            }
+            DataOutputStream out = new DataOutputStream(lock.getOutputStream());
+            out.writeInt(INDEX_SIGNATURE);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(sa.size());
+            byte[] noId = new byte[UID_LENGTH / 2];
+            for (Entry entry : sa.values()) {
+                out.writeUTF(entry.getPath());
+                out.writeBoolean(entry.isRemoval());
+                out.write(entry.isRemoval() ? noId : fromHex(entry.getBlobId()));
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getMtime());
+                out.writeInt(entry.getMode());
+            }
+            out.flush();
+            lock.commit();
+            lastRead = new TreeMap<>(sa);
+        } catch (IOException e) {
+            throw error("Cannot write index: %s", e.getMessage());
+        }
     }
 }
@@ -0,0 +1,198 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * Remembers the size, mtime and blob id of working files that were hashed before,
+ * so that files whose size and mtime did not change are never read or hashed again.
+ * A file modified within RACY_WINDOW of the moment it was verified is always hashed,
+ * because a second modification in the same clock tick would not change its mtime.
+ *
+ * @author apotocki
+ */
+public class StatCache {
+    /**
+     * Magic number at the start of the stat cache file ("GLSC")
+     */
+    private static final int CACHE_SIGNATURE = 0x474c5343;
+    /**
+     * Version of the stat cache file format
+     */
+    private static final int CACHE_VERSION = 1;
+    /**
+     * Files modified this close (in ms) to their verification are not trusted
+     */
+    private static final long RACY_WINDOW = 1000;
+
+    private static class CachedStat {
+        private final long size;
+        private final long mtime;
+        private final long verifiedAt;
+        private final String blobId;
+
+        CachedStat(long size, long mtime, long verifiedAt, String blobId) {
+            this.size = size;
+            this.mtime = mtime;
+            this.verifiedAt = verifiedAt;
+            this.blobId = blobId;
+        }
+
+        boolean matches(long otherSize, long otherMtime) {
+            return size == otherSize && mtime == otherMtime
+                    && mtime + RACY_WINDOW < verifiedAt;
+        }
+    }
+
+    private final TreeMap<String, CachedStat> entries = new TreeMap<>();
+    private boolean changed = false;
+
+    /**
+     * The cache kept in memory by a long-running process, or null
+     */
+    private static StatCache resident;
+    private static boolean keepResident = false;
+
+    private StatCache() {
+    }
+
+    /**
+     * Keeps the cache in memory once it is loaded, so that later loads in the
+     * same process return it instead of reading the file again.
+     */
+    static void keepResident() {
+        keepResident = true;
+    }
+
+    public static StatCache load() {
+        if (resident != null) {
+            return resident;
+        }
+        StatCache cache = new StatCache();
+        if (keepResident) {
+            resident = cache;
+        }
+        File cacheFile = Repository.STAT_CACHE;
+        if (!cacheFile.exists()) {
+            return cache;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(cacheFile.toPath())))) {
+            if (in.readInt() != CACHE_SIGNATURE || in.readInt() != CACHE_VERSION) {
+                // Unknown format; start over with an empty cache
+                return cache;
+            }
+            int count = in.readInt();
+            byte[] rawId = new byte[UID_LENGTH / 2];
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                long verifiedAt = in.readLong();
+                in.readFully(rawId);
+                cache.entries.put(path, new CachedStat(size, mtime, verifiedAt, toHex(rawId)));
+            }
+        } catch (IOException e) {
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the blob id of FILE, stored at PATH in the working tree.
+     * The file is read and hashed only if its size or mtime changed since it was last hashed.
+     */
+    public String getBlobId(String path, File file) {
+        try {
+            return lookup(path, file, false);
+        } catch (IOException e) {
+            throw error("Cannot read %s: %s", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Like getBlobId, but a file that has to be read is also stored in the object store,
+     * so that adding a changed file reads it only once.
+     */
+    public String saveBlob(String path, File file) throws IOException {
+        return lookup(path, file, true);
+    }
+
+    /**
+     * Looks up or hashes FILE at PATH. Files are hashed outside of the lock on the
+     * cache, so several threads can look up different files at once.
+     */
+    private String lookup(String path, File file, boolean save) throws IOException {
+        CachedStat cached;
+        synchronized (this) {
+            cached = entries.get(path);
+        }
+        if (cached != null && WorkingTree.isUnchanged(path)
+                && (!save || ObjectStore.exists(cached.blobId))) {
+            return cached.blobId;
+        }
+        BasicFileAttributes attributes =
+                Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long size = attributes.size();
+        long mtime = attributes.lastModifiedTime().toMillis();
+        if (cached != null && cached.matches(size, mtime)
+                && (!save || ObjectStore.exists(cached.blobId))) {
+            WorkingTree.markVerified(path);
+            return cached.blobId;
+        }
+        long verifiedAt = System.currentTimeMillis();
+        String blobId = save ? Blob.save(file) : Blob.getBlobId(file);
+        synchronized (this) {
+            entries.put(path, new CachedStat(size, mtime, verifiedAt, blobId));
+            changed = true;
+        }
+        WorkingTree.markVerified(path);
+        return blobId;
+    }
+
+    /**
+     * Drops the entries of all files not in PATHS.
+     */
+    public synchronized void retainAll(Collection<String> paths) {
+        if (entries.keySet().retainAll(paths)) {
+            changed = true;
+        }
+    }
+
+    /**
+     * Writes the cache back to disk if any entry changed.
+     */
+    public synchronized void save() {
+        if (!changed) {
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(Repository.STAT_CACHE.toPath())))) {
+            out.writeInt(CACHE_SIGNATURE);
+            out.writeInt(CACHE_VERSION);
+            out.writeInt(entries.size());
+            for (String path : entries.keySet()) {
+                CachedStat cached = entries.get(path);
+                out.writeUTF(path);
+                out.writeLong(cached.size);
+                out.writeLong(cached.mtime);
+                out.writeLong(cached.verifiedAt);
+                out.write(fromHex(cached.blobId));
+            }
+            changed = false;
+        } catch (IOException e) {
+            // The cache is only an optimization; a missing cache just means rehashing
+            Repository.STAT_CACHE.delete();
+        }
+    }
+}
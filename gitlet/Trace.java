@@ -0,0 +1,215 @@
+package gitlet;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Optional instrumentation of a single command: counts of object store and file
+ * system operations and the wall time spent in named phases. Tracing is turned
+ * on by the --trace flag or the GITLET_TRACE environment variable; with the value
+ * "json" (--trace=json or GITLET_TRACE=json) the report is printed as JSON,
+ * otherwise as a table. The report goes to System.err when the command ends.
+ * When tracing is off, every method returns at once.
+ *
+ * @author apotocki
+ */
+public class Trace {
+    /**
+     * Operations counted while tracing.
+     */
+    enum Counter {
+        OBJECT_READS("objectReads"),
+        OBJECT_WRITES("objectWrites"),
+        BYTES_READ("bytesRead"),
+        BYTES_WRITTEN("bytesWritten"),
+        BYTES_SERIALIZED("bytesSerialized"),
+        BYTES_DESERIALIZED("bytesDeserialized"),
+        SHA1_INVOCATIONS("sha1Invocations"),
+        SHA1_NANOS("sha1Nanos"),
+        DIRECTORY_LISTINGS("directoryListings");
+
+        private final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A named phase of a command, timed from its creation until it is closed.
+     */
+    static class Phase implements AutoCloseable {
+        private final String name;
+        private final long start;
+
+        private Phase(String name, long start) {
+            this.name = name;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            if (name != null) {
+                addPhaseTime(name, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final Phase NO_PHASE = new Phase(null, 0);
+
+    private static boolean enabled = false;
+    private static boolean json = false;
+    private static long commandStart;
+    private static final AtomicLongArray COUNTERS = new AtomicLongArray(Counter.values().length);
+    /**
+     * Total nanoseconds per phase, in the order the phases were first entered
+     */
+    private static final Map<String, Long> PHASES = new LinkedHashMap<>();
+
+    /**
+     * Turns tracing on if the GITLET_TRACE environment variable or OPTION, the
+     * value of a --trace flag (null if there was none), asks for it.
+     */
+    static void configure(String option) {
+        String value = option != null ? option : System.getenv("GITLET_TRACE");
+        if (value == null || value.equals("0") || value.equalsIgnoreCase("false")) {
+            return;
+        }
+        enabled = true;
+        json = value.equalsIgnoreCase("json");
+        commandStart = System.nanoTime();
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void count(Counter counter) {
+        add(counter, 1);
+    }
+
+    static void add(Counter counter, long amount) {
+        if (enabled) {
+            COUNTERS.addAndGet(counter.ordinal(), amount);
+        }
+    }
+
+    /**
+     * Returns the current time to pass to addTime later, or 0 if tracing is off.
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Adds the nanoseconds since START, as returned by start(), to COUNTER.
+     */
+    static void addTime(Counter counter, long start) {
+        if (enabled) {
+            COUNTERS.addAndGet(counter.ordinal(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Starts the phase NAME, to be closed when it ends. A phase entered several
+     * times, or by several threads, adds up.
+     */
+    static Phase phase(String name) {
+        return enabled ? new Phase(name, System.nanoTime()) : NO_PHASE;
+    }
+
+    private static synchronized void addPhaseTime(String name, long nanos) {
+        PHASES.merge(name, nanos, Long::sum);
+    }
+
+    /**
+     * Prints the report for COMMAND to System.err, if tracing is on.
+     */
+    static synchronized void report(String command) {
+        if (!enabled) {
+            return;
+        }
+        long total = System.nanoTime() - commandStart;
+        StringBuilder out = new StringBuilder();
+        if (json) {
+            out.append("{\"command\":");
+            appendJsonString(out, command);
+            out.append(",\"totalMillis\":")
+                    .append(millis(total)).append(",\"phases\":{");
+            String separator = "";
+            for (Map.Entry<String, Long> phase : PHASES.entrySet()) {
+                out.append(separator);
+                appendJsonString(out, phase.getKey());
+                out.append(':').append(millis(phase.getValue()));
+                separator = ",";
+            }
+            out.append("},\"counters\":{");
+            separator = "";
+            for (Counter counter : Counter.values()) {
+                out.append(separator).append('"').append(counter.key).append("\":")
+                        .append(COUNTERS.get(counter.ordinal()));
+                separator = ",";
+            }
+            out.append(",\"commitCacheHits\":").append(CommitCache.getHits())
+                    .append(",\"commitCacheMisses\":").append(CommitCache.getMisses())
+                    .append("}}");
+        } else {
+            out.append(String.format("trace: %s%n", command));
+            out.append(String.format("  %-24s %12s ms%n", "total", millis(total)));
+            for (Map.Entry<String, Long> phase : PHASES.entrySet()) {
+                out.append(String.format("  %-24s %12s ms%n", phase.getKey(),
+                        millis(phase.getValue())));
+            }
+            for (Counter counter : Counter.values()) {
+                out.append(String.format("  %-24s %12d%n", counter.key,
+                        COUNTERS.get(counter.ordinal())));
+            }
+            out.append(String.format("  %-24s %12d%n", "commitCacheHits", CommitCache.getHits()));
+            out.append(String.format("  %-24s %12d", "commitCacheMisses",
+                    CommitCache.getMisses()));
+        }
+        System.err.print(out.append(System.lineSeparator()));
+    }
+
+    /**
+     * Appends VALUE to OUT as a JSON string, escaping quotes, backslashes and
+     * control characters.
+     */
+    private static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
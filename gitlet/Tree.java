@@ -0,0 +1,241 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * A directory snapshot: the files and subdirectories of one directory, each
+ * identified by the id of its blob or tree. Trees are content-addressed like
+ * blobs, so a subtree that did not change keeps its id and is shared between
+ * commits, and two trees with the same id need not be compared at all.
+ * A tree is stored as a sequence of entries sorted by name:
+ * <pre>
+ *   MODE NAME\0 raw id (20 bytes)
+ * </pre>
+ * The null tree id stands for the empty tree.
+ *
+ * @author apotocki
+ */
+class Tree {
+    private static final String FILE_MODE = "100644";
+    private static final String TREE_MODE = "40000";
+    private static final int ID_SIZE = UID_LENGTH / 2;
+
+    /**
+     * Maximum number of trees kept in memory
+     */
+    private static final int CACHE_CAPACITY = 65536;
+
+    /**
+     * Trees read or written recently, by id, least recently used first
+     */
+    private static final Map<String, Tree> LOADED =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Tree> eldest) {
+                    return size() > CACHE_CAPACITY;
+                }
+            };
+
+    /**
+     * A file or subdirectory of a tree.
+     */
+    private static class TreeEntry {
+        private final boolean isTree;
+        private final String id;
+
+        TreeEntry(boolean isTree, String id) {
+            this.isTree = isTree;
+            this.id = id;
+        }
+    }
+
+    private final TreeMap<String, TreeEntry> entries;
+
+    private Tree(TreeMap<String, TreeEntry> entries) {
+        this.entries = entries;
+    }
+
+    private static Tree read(String id) {
+        if (id == null) {
+            return new Tree(new TreeMap<>());
+        }
+        Tree tree = LOADED.get(id);
+        if (tree != null) {
+            return tree;
+        }
+        byte[] data;
+        try {
+            data = ObjectStore.read(id, ObjectStore.TREE);
+        } catch (IOException e) {
+            throw error("Cannot read tree %s: %s", id, e.getMessage());
+        }
+        TreeMap<String, TreeEntry> entries = new TreeMap<>();
+        int pos = 0;
+        while (pos < data.length) {
+            int space = indexOf(data, (byte) ' ', pos);
+            int nul = indexOf(data, (byte) 0, space);
+            String mode = new String(data, pos, space - pos, StandardCharsets.UTF_8);
+            String name = new String(data, space + 1, nul - space - 1, StandardCharsets.UTF_8);
+            byte[] rawId = new byte[ID_SIZE];
+            System.arraycopy(data, nul + 1, rawId, 0, ID_SIZE);
+            entries.put(name, new TreeEntry(mode.equals(TREE_MODE), toHex(rawId)));
+            pos = nul + 1 + ID_SIZE;
+        }
+        tree = new Tree(entries);
+        LOADED.put(id, tree);
+        return tree;
+    }
+
+    private static int indexOf(byte[] data, byte b, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        throw error("Corrupt tree object");
+    }
+
+    /**
+     * Saves this tree and returns its id, or null if it is empty.
+     */
+    private String save() {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map.Entry<String, TreeEntry> entry : entries.entrySet()) {
+            String mode = entry.getValue().isTree ? TREE_MODE : FILE_MODE;
+            out.writeBytes((mode + " " + entry.getKey()).getBytes(StandardCharsets.UTF_8));
+            out.write(0);
+            out.writeBytes(fromHex(entry.getValue().id));
+        }
+        try {
+            String id = ObjectStore.write(ObjectStore.TREE, out.toByteArray());
+            LOADED.put(id, this);
+            return id;
+        } catch (IOException e) {
+            throw error("Cannot write tree: %s", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the tree TREEID with the files in CHANGES set to the blob ids they
+     * map to, or removed if they map to null. Only the trees on the paths of the
+     * changed files are rewritten. Paths use '/' to separate directories.
+     */
+    static String update(String treeId, Map<String, String> changes) {
+        Tree tree = read(treeId);
+        TreeMap<String, TreeEntry> entries = new TreeMap<>(tree.entries);
+        Map<String, Map<String, String>> subtreeChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    entries.remove(path);
+                } else {
+                    entries.put(path, new TreeEntry(false, change.getValue()));
+                }
+            } else {
+                subtreeChanges.computeIfAbsent(path.substring(0, slash), k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> subtree : subtreeChanges.entrySet()) {
+            TreeEntry old = entries.get(subtree.getKey());
+            String oldId = old != null && old.isTree ? old.id : null;
+            String newId = update(oldId, subtree.getValue());
+            if (newId == null) {
+                entries.remove(subtree.getKey());
+            } else {
+                entries.put(subtree.getKey(), new TreeEntry(true, newId));
+            }
+        }
+        return new Tree(entries).save();
+    }
+
+    /**
+     * Returns all files of the tree TREEID as a map from path to blob id.
+     */
+    static TreeMap<String, String> flatten(String treeId) {
+        TreeMap<String, String> files = new TreeMap<>();
+        flatten(treeId, "", files);
+        return files;
+    }
+
+    private static void flatten(String treeId, String prefix, Map<String, String> files) {
+        for (Map.Entry<String, TreeEntry> entry : read(treeId).entries.entrySet()) {
+            String path = prefix + entry.getKey();
+            if (entry.getValue().isTree) {
+                flatten(entry.getValue().id, path + "/", files);
+            } else {
+                files.put(path, entry.getValue().id);
+            }
+        }
+    }
+
+    /**
+     * Records in PATHHINTS the path of every blob and subtree reachable from the
+     * tree TREEID that has none yet. Trees already recorded are not read again.
+     */
+    static void addPathHints(String treeId, Map<String, String> pathHints) {
+        pathHints.putIfAbsent(treeId, "");
+        addPathHints(treeId, "", pathHints);
+    }
+
+    private static void addPathHints(String treeId, String prefix, Map<String, String> pathHints) {
+        for (Map.Entry<String, TreeEntry> entry : read(treeId).entries.entrySet()) {
+            String path = prefix + entry.getKey();
+            TreeEntry child = entry.getValue();
+            if (pathHints.putIfAbsent(child.id, path) == null && child.isTree) {
+                addPathHints(child.id, path + "/", pathHints);
+            }
+        }
+    }
+
+    /**
+     * Returns the files that differ between the trees OLDID and NEWID, mapped to
+     * their {old, new} blob ids, where a missing file has a null id.
+     * Subtrees with the same id on both sides are skipped without being read.
+     */
+    static SortedMap<String, String[]> diff(String oldId, String newId) {
+        SortedMap<String, String[]> changes = new TreeMap<>();
+        diff(oldId, newId, "", changes);
+        return changes;
+    }
+
+    private static void diff(String oldId, String newId, String prefix,
+                             Map<String, String[]> changes) {
+        if (oldId == null ? newId == null : oldId.equals(newId)) {
+            return;
+        }
+        TreeMap<String, TreeEntry> oldEntries = read(oldId).entries;
+        TreeMap<String, TreeEntry> newEntries = read(newId).entries;
+        TreeMap<String, Boolean> names = new TreeMap<>();
+        oldEntries.keySet().forEach(name -> names.put(name, true));
+        newEntries.keySet().forEach(name -> names.put(name, true));
+        for (String name : names.keySet()) {
+            TreeEntry oldEntry = oldEntries.get(name);
+            TreeEntry newEntry = newEntries.get(name);
+            String path = prefix + name;
+            String oldSubtree = oldEntry != null && oldEntry.isTree ? oldEntry.id : null;
+            String newSubtree = newEntry != null && newEntry.isTree ? newEntry.id : null;
+            if (oldSubtree != null || newSubtree != null) {
+                diff(oldSubtree, newSubtree, path + "/", changes);
+            }
+            String oldFile = oldEntry != null && !oldEntry.isTree ? oldEntry.id : null;
+            String newFile = newEntry != null && !newEntry.isTree ? newEntry.id : null;
+            if (oldFile == null ? newFile != null : !oldFile.equals(newFile)) {
+                changes.put(path, new String[]{oldFile, newFile});
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -9,11 +10,18 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 
@@ -40,6 +48,8 @@ class Utils {
      * be any mixture of byte arrays and Strings.
      */
     static String sha1(Object... vals) {
+        Trace.count(Trace.Counter.SHA1_INVOCATIONS);
+        long start = Trace.start();
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
             for (Object val : vals) {
@@ -55,6 +65,7 @@ class Utils {
             for (byte b : md.digest()) {
                 result.format("%02x", b);
             }
+            Trace.addTime(Trace.Counter.SHA1_NANOS, start);
             return result.toString();
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
@@ -69,6 +80,29 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /**
+     * Returns the lowercase hexadecimal numeral of the bytes in RAW.
+     */
+    static String toHex(byte[] raw) {
+        StringBuilder result = new StringBuilder(raw.length * 2);
+        for (byte b : raw) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns the bytes denoted by the hexadecimal numeral HEX.
+     */
+    static byte[] fromHex(String hex) {
+        byte[] raw = new byte[hex.length() / 2];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return raw;
+    }
+
     /* FILE DELETION */
 
     /**
@@ -194,6 +228,7 @@ class Utils {
      * not denote a directory.
      */
     static List<String> plainFilenamesIn(File dir) {
+        Trace.count(Trace.Counter.DIRECTORY_LISTINGS);
         String[] files = dir.list(PLAIN_FILES);
         if (files == null) {
             return null;
@@ -244,6 +279,7 @@ class Utils {
             ObjectOutputStream objectStream = new ObjectOutputStream(stream);
             objectStream.writeObject(obj);
             objectStream.close();
+            Trace.add(Trace.Counter.BYTES_SERIALIZED, stream.size());
             return stream.toByteArray();
         } catch (IOException excp) {
             throw error("Internal error serializing commit.");
@@ -252,6 +288,20 @@ class Utils {
 
 
 
+    /**
+     * Returns the object serialized in DATA, casting it to EXPECTEDCLASS.
+     * Throws IllegalArgumentException in case of problems.
+     */
+    static <T extends Serializable> T deserialize(byte[] data, Class<T> expectedClass) {
+        Trace.add(Trace.Counter.BYTES_DESERIALIZED, data.length);
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return expectedClass.cast(in.readObject());
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /* MESSAGES AND ERROR REPORTING */
 
     /**
@@ -271,17 +321,75 @@ class Utils {
         System.out.println();
     }
 
+    /**
+     * Returns the time in milliseconds that VALUE, a date "yyyy-MM-dd" or a date
+     * and time "yyyy-MM-ddTHH:mm[:ss]" in the local time zone, stands for. A date
+     * alone is the start of that day, or with ENDOFDAY its last millisecond.
+     */
+    static long parseTime(String value, boolean endOfDay) {
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            if (value.indexOf('T') < 0) {
+                LocalDate date = LocalDate.parse(value);
+                if (endOfDay) {
+                    return date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+                }
+                return date.atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            return LocalDateTime.parse(value).atZone(zone).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw error("Invalid date: %s", value);
+        }
+    }
+
     /* MY UTILS */
-    public static String saveObject(Serializable gitObject) throws IOException {
-        String objectId = sha1((Object) serialize(gitObject));
-        File dir = join(Repository.OBJECTS, objectId.substring(0, 2));
-        File file = join(dir, objectId.substring(2));
-        if (!dir.exists()) {
-            dir.mkdir();
+
+    /**
+     * Returns whether written files are forced to disk, as set by core.fsync.
+     */
+    static boolean isFsyncEnabled() {
+        return Config.getBoolean(Config.FSYNC, true);
+    }
+
+    /**
+     * Forces the content of FILES to disk, unless core.fsync is false.
+     */
+    static void fsync(Collection<Path> files) throws IOException {
+        if (!isFsyncEnabled()) {
+            return;
+        }
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.force(true);
+            }
         }
-        file.createNewFile();
-        writeObject(file, gitObject);
-        return objectId;
+    }
+
+    /**
+     * Forces each directory holding one of FILES to disk once, so that files
+     * just renamed into them survive a crash, unless core.fsync is false.
+     */
+    static void fsyncParents(Collection<Path> files) {
+        if (!isFsyncEnabled()) {
+            return;
+        }
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Path file : files) {
+            dirs.add(file.toAbsolutePath().getParent());
+        }
+        for (Path dir : dirs) {
+            try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Directories cannot be opened on every platform; renames are durable there
+            }
+        }
+    }
+
+    public static String saveObject(Commit commit) throws IOException {
+        String id = ObjectStore.write(ObjectStore.COMMIT, commit.encode());
+        commit.setId(id);
+        return id;
     }
 
     public static File getFileByShaHash(String id) {
@@ -290,34 +398,33 @@ class Utils {
     }
 
     public static Commit getCommitByShaHash(String id) {
-        File directory = join(Repository.OBJECTS, id.substring(0, 2));
-        File commitFile = null;
-        if (id.length() < SHA_HASH_LENGTH) {
-            List<String> filesInDir = plainFilenamesIn(directory);
-            for (String f : filesInDir) {
-                if (f.startsWith(id.substring(2))) {
-                    commitFile = join(directory, f);
-                }
-            }
-        } else {
-            commitFile = join(directory, id.substring(2));
+        String commitId = id.length() == SHA_HASH_LENGTH
+                ? id : ObjectStore.resolve(id, ObjectStore.COMMIT);
+        if (commitId == null) {
+            return null;
+        }
+        Commit commit = CommitCache.get(commitId);
+        if (commit != null) {
+            return commit;
         }
-        if (commitFile == null || !commitFile.exists()) {
+        if (!ObjectStore.exists(commitId)) {
             return null;
         }
-        return readObject(commitFile, Commit.class);
+        try {
+            commit = Commit.decode(commitId, ObjectStore.read(commitId, ObjectStore.COMMIT));
+        } catch (IOException e) {
+            return null;
+        }
+        CommitCache.put(commitId, commit);
+        return commit;
     }
 
     public static Commit getHeadCommit() {
-        String headCommitId = Refs.getHeadCommitId();
-        File commit = getFileByShaHash(headCommitId);
-        return readObject(commit, Commit.class);
+        return getCommitByShaHash(Refs.getHeadCommitId());
     }
 
     public static Commit getHeadCommit(String branchName) {
-        File branchRef = join(Refs.HEADS_DIR, branchName);
-        String commitId = readContentsAsString(branchRef).replaceFirst("ref: ", "");
-        return getCommitByShaHash(commitId);
+        return getCommitByShaHash(Refs.getHeadCommitId(branchName));
     }
 
     public static void printHeadCommit() {
@@ -325,39 +432,18 @@ class Utils {
         headCommit.dump();
     }
 
-    public static void printStagingArea(HashMap<String, byte[]> stagingArea) {
-        List<String> keySet = new ArrayList<>(stagingArea.keySet());
-        Collections.sort(keySet);
+    public static void printStagingArea(Map<String, StagingArea.Entry> stagingArea) {
         System.out.println("=== Staged Files ===");
-        for (String k : keySet) {
-            if (stagingArea.get(k) != null) {
-                System.out.println(k);
+        for (StagingArea.Entry entry : stagingArea.values()) {
+            if (!entry.isRemoval()) {
+                System.out.println(entry.getPath());
             }
         }
         System.out.println();
         System.out.println("=== Removed Files ===");
-        for (String k : keySet) {
-            if (stagingArea.get(k) == null) {
-                System.out.println(k);
-            }
-        }
-    }
-
-    public static void printStagingArea() {
-        Map<String, byte[]> stagingArea = StagingArea.getNewestStagingArea();
-        List<String> keySet = new ArrayList<>(stagingArea.keySet());
-        Collections.sort(keySet);
-        System.out.println("=== Staged Files ===");
-        for (String k : keySet) {
-            if (stagingArea.get(k) != null) {
-                System.out.println(k);
-                stagingArea.remove(k);
-            }
-        }
-        System.out.println("\n === Removed Files ===");
-        for (String k : keySet) {
-            if (stagingArea.get(k) == null) {
-                System.out.println(k);
+        for (StagingArea.Entry entry : stagingArea.values()) {
+            if (entry.isRemoval()) {
+                System.out.println(entry.getPath());
             }
         }
     }
@@ -380,66 +466,20 @@ class Utils {
         return headTrackedFiles.containsKey(filePath);
     }
 
-    /**
-     * Check if file is tracked by head commit and file content did not change
-     */
-    public static boolean isFileTrackedByHeadAndUnchanged(String filePath, byte[] fileContent) {
-        Commit headCommit = getHeadCommit();
-        Map<String, String> headTrackedFiles = headCommit.getTrackedFiles();
-        if (headTrackedFiles.containsKey(filePath)) {
-            String fileHash = headTrackedFiles.get(filePath);
-            File trackedFile = getFileByShaHash(fileHash);
-            Blob fileObject = readObject(trackedFile, Blob.class);
-            byte[] trackedFileContent = fileObject.getFileContent();
-            return Arrays.equals(fileContent, trackedFileContent);
-        }
-        return false;
-    }
-
-    public static boolean isFileTrackedByHeadAndUnchanged(
-            String filePath,
-            byte[] fileContent,
-            Map<String, String> headTrackedFiles
-    ) {
-        if (headTrackedFiles.containsKey(filePath)) {
-            String fileHash = headTrackedFiles.get(filePath);
-            File trackedFile = getFileByShaHash(fileHash);
-            Blob fileObject = readObject(trackedFile, Blob.class);
-            byte[] trackedFileContent = fileObject.getFileContent();
-            return Arrays.equals(fileContent, trackedFileContent);
-        }
-        return false;
-    }
-
-    public static String getCommitId(Commit commit) {
-        return sha1((Object) serialize(commit));
-    }
-
     public static void addFileToCWD(String id, String fileName) {
-        Blob blob = readObject(getFileByShaHash(id), Blob.class);
-        String contentAsString = new String(blob.getFileContent(), StandardCharsets.UTF_8);
-        File newFile = join(Repository.CWD, fileName);
-        writeContents(newFile, contentAsString);
-        try {
-            newFile.createNewFile();
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
-        }
+        checkoutFile(id, fileName);
     }
 
+    /**
+     * Writes the content of the blob HASHID to the working file FILENAME, byte for byte.
+     */
     public static void checkoutFile(String hashId, String fileName) {
-        String fileContent = getSerializedFileContent(hashId);
         File targetFile = join(Repository.CWD, fileName);
-        writeContents(targetFile, fileContent);
-    }
-
-    public static String getSerializedFileContent(String fileID) {
-        Blob fileBlob = readObject(getFileByShaHash(fileID), Blob.class);
-        return new String(fileBlob.getFileContent(), StandardCharsets.UTF_8);
-    }
-
-    public static String getSerializedFileContent(File file) {
-        Blob fileBlob = readObject(file, Blob.class);
-        return new String(fileBlob.getFileContent(), StandardCharsets.UTF_8);
+        try {
+            targetFile.getParentFile().mkdirs();
+            Blob.writeTo(hashId, targetFile);
+        } catch (IOException e) {
+            throw error("Cannot check out %s: %s", fileName, e.getMessage());
+        }
     }
 }
@@ -0,0 +1,246 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+import static gitlet.Utils.*;
+
+/**
+ * The files of the working directory, including those in subdirectories.
+ * Paths are relative to the working directory and use '/' as separator.
+ * Directories are listed in parallel, one fork-join task per directory, and
+ * files matching a pattern of the .gitletignore file are skipped; an ignored
+ * directory is never entered.
+ *
+ * @author apotocki
+ */
+public class WorkingTree {
+    public static final File IGNORE_FILE = join(Repository.CWD, ".gitletignore");
+
+    /**
+     * A line of the ignore file. A pattern is a glob matched against the name of a
+     * file or directory at any depth, or against its whole path if it contains a
+     * '/'. A pattern ending with '/' only matches directories.
+     */
+    private static class IgnoreRule {
+        private final PathMatcher matcher;
+        private final boolean matchesPath;
+        private final boolean directoryOnly;
+
+        IgnoreRule(String pattern) {
+            this.directoryOnly = pattern.endsWith("/");
+            String glob = directoryOnly ? pattern.substring(0, pattern.length() - 1) : pattern;
+            if (glob.startsWith("/")) {
+                glob = glob.substring(1);
+            }
+            this.matchesPath = glob.contains("/") || pattern.startsWith("/");
+            this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        }
+
+        boolean matches(String path, String name, boolean isDirectory) {
+            if (directoryOnly && !isDirectory) {
+                return false;
+            }
+            return matcher.matches(Paths.get(matchesPath ? path : name));
+        }
+    }
+
+    /**
+     * The working files as kept up to date by a file watcher, e.g. by a running
+     * daemon. When one is set, the working tree is never listed.
+     */
+    interface Snapshot {
+        /**
+         * Calls CONSUMER with the path of every file that is not ignored.
+         */
+        void forEachFile(Consumer<String> consumer);
+
+        /**
+         * Returns whether the file at PATH is known not to have changed since
+         * markVerified was last called for it.
+         */
+        boolean isUnchanged(String path);
+
+        void markVerified(String path);
+    }
+
+    private static Snapshot snapshot;
+
+    private final List<IgnoreRule> ignoreRules;
+
+    private WorkingTree(List<IgnoreRule> ignoreRules) {
+        this.ignoreRules = ignoreRules;
+    }
+
+    /**
+     * Returns the working tree, with the ignore rules read from .gitletignore.
+     */
+    public static WorkingTree load() {
+        List<IgnoreRule> rules = new ArrayList<>();
+        if (IGNORE_FILE.isFile()) {
+            for (String line : readContentsAsString(IGNORE_FILE).split("\n")) {
+                String pattern = line.trim();
+                if (!pattern.isEmpty() && !pattern.startsWith("#")) {
+                    rules.add(new IgnoreRule(pattern));
+                }
+            }
+        }
+        return new WorkingTree(rules);
+    }
+
+    /**
+     * Returns whether the file or directory at PATH is ignored.
+     */
+    public boolean isIgnored(String path, boolean isDirectory) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        for (IgnoreRule rule : ignoreRules) {
+            if (rule.matches(path, name, isDirectory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes SNAPSHOT the source of the working files, instead of the file system.
+     */
+    static void useSnapshot(Snapshot newSnapshot) {
+        snapshot = newSnapshot;
+    }
+
+    /**
+     * Returns whether a file watcher knows that the file at PATH did not change since
+     * its content was last verified, so that it does not even need to be stat-ed.
+     */
+    static boolean isUnchanged(String path) {
+        return snapshot != null && snapshot.isUnchanged(path);
+    }
+
+    /**
+     * Records that the content of the file at PATH was just verified.
+     */
+    static void markVerified(String path) {
+        if (snapshot != null) {
+            snapshot.markVerified(path);
+        }
+    }
+
+    /**
+     * Calls CONSUMER with the path of every file that is not ignored, as soon as it
+     * is found. CONSUMER is called from several threads at once.
+     */
+    public void walk(Consumer<String> consumer) {
+        if (snapshot != null) {
+            snapshot.forEachFile(consumer);
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Config.getThreads());
+        try {
+            pool.invoke(new DirectoryWalk(Repository.CWD.toPath(), "", consumer));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Returns the paths of all files that are not ignored, in sorted order.
+     */
+    public TreeSet<String> listFiles() {
+        ConcurrentLinkedQueue<String> files = new ConcurrentLinkedQueue<>();
+        walk(files::add);
+        return new TreeSet<>(files);
+    }
+
+    /**
+     * Lists one directory, reports its files and forks a task for each subdirectory.
+     */
+    private class DirectoryWalk extends RecursiveAction {
+        private final Path dir;
+        private final String prefix;
+        private final Consumer<String> consumer;
+
+        DirectoryWalk(Path dir, String prefix, Consumer<String> consumer) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryWalk> subdirs = new ArrayList<>();
+            Trace.count(Trace.Counter.DIRECTORY_LISTINGS);
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    String name = child.getFileName().toString();
+                    String path = prefix + name;
+                    if (path.equals(".gitlet")) {
+                        continue;
+                    }
+                    BasicFileAttributes attributes = Files.readAttributes(
+                            child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        if (!isIgnored(path, true)) {
+                            subdirs.add(new DirectoryWalk(child, path + "/", consumer));
+                        }
+                    } else if (attributes.isRegularFile() && !isIgnored(path, false)) {
+                        consumer.accept(path);
+                    }
+                }
+            } catch (IOException e) {
+                throw error("Cannot list %s: %s", prefix.isEmpty() ? "." : prefix,
+                        e.getMessage());
+            }
+            invokeAll(subdirs);
+        }
+    }
+
+    /**
+     * Returns PATH, as given on the command line, relative to the working
+     * directory, with '/' separators and without "." or ".." parts. Throws a
+     * GitletException if it is outside the working directory or in .gitlet.
+     */
+    public static String normalize(String path) {
+        Path cwd = Repository.CWD.toPath().toAbsolutePath().normalize();
+        Path relative = cwd.relativize(cwd.resolve(path).normalize());
+        String normalized = relative.toString().replace(File.separatorChar, '/');
+        if (normalized.isEmpty()) {
+            throw error("%s is not a file.", path);
+        }
+        if (normalized.equals("..") || normalized.startsWith("../")) {
+            throw error("%s is outside the working directory.", path);
+        }
+        if (relative.getName(0).toString().equals(".gitlet")) {
+            throw error("%s is inside .gitlet.", path);
+        }
+        return normalized;
+    }
+
+    /**
+     * Deletes the working file at PATH, along with any directories that it leaves empty.
+     */
+    public static void delete(String path) {
+        File file = join(Repository.CWD, path);
+        if (file.isDirectory() || !file.delete()) {
+            return;
+        }
+        File dir = file.getParentFile();
+        while (!dir.equals(Repository.CWD) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static gitlet.Utils.*;
+
+/**
+ * Checks what happens when another gitlet process changes the repository
+ * while a command runs. The other process is a real gitlet process, started
+ * between the point where this one reads the index or a branch and the point
+ * where it saves them. Run in an empty directory, with gitlet on the class path.
+ *
+ * @author apotocki
+ */
+public class ConcurrencyCheck {
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        if (Repository.GITLET_DIR.exists()) {
+            System.out.println("Run ConcurrencyCheck in an empty directory.");
+            System.exit(2);
+        }
+        Main.run(new String[]{"init"});
+
+        checkRestagedFileSurvivesCommit();
+        checkOtherStagedFileSurvives();
+        checkMovedBranchIsNotOverwritten();
+        checkStaleGraphAddsNoDuplicates();
+
+        System.out.println(failures == 0 ? "All checks passed." : failures + " checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * A file committed from the index, then re-staged by another process
+     * before the index is cleared, stays staged.
+     */
+    private static void checkRestagedFileSurvivesCommit() throws Exception {
+        writeContents(join(Repository.CWD, "a.txt"), "v1");
+        gitlet("add", "a.txt");
+        Map<String, StagingArea.Entry> read = StagingArea.getNewestStagingArea();
+        String committed = read.get("a.txt").getBlobId();
+
+        writeContents(join(Repository.CWD, "a.txt"), "v2");
+        gitlet("add", "a.txt");
+        StagingArea.clearCommitted();
+
+        StagingArea.Entry entry = StagingArea.getNewestStagingArea().get("a.txt");
+        check("re-staged a.txt is still staged", entry != null);
+        check("a.txt is staged with its new content",
+                entry != null && !entry.getBlobId().equals(committed));
+        gitlet("commit", "a.txt");
+    }
+
+    /**
+     * A file another process stages while this one changes the index is kept,
+     * along with this process's own change.
+     */
+    private static void checkOtherStagedFileSurvives() throws Exception {
+        writeContents(join(Repository.CWD, "b.txt"), "b");
+        writeContents(join(Repository.CWD, "c.txt"), "c");
+        Map<String, StagingArea.Entry> read = StagingArea.getNewestStagingArea();
+        gitlet("add", "b.txt");
+
+        File c = join(Repository.CWD, "c.txt");
+        read.put("c.txt", StagingArea.Entry.forAddition("c.txt", Blob.save(c), c));
+        StagingArea.saveStagingArea(read);
+
+        Map<String, StagingArea.Entry> saved = StagingArea.getNewestStagingArea();
+        check("b.txt staged by the other process is kept", saved.containsKey("b.txt"));
+        check("c.txt staged by this process is saved", saved.containsKey("c.txt"));
+        gitlet("commit", "b and c");
+    }
+
+    /**
+     * A branch moved by another process after this one read it is not moved
+     * again.
+     */
+    private static void checkMovedBranchIsNotOverwritten() throws Exception {
+        String readHead = Refs.getHeadCommitId();
+        writeContents(join(Repository.CWD, "d.txt"), "d");
+        gitlet("add", "d.txt");
+        gitlet("commit", "d.txt");
+        String movedHead = Refs.getHeadCommitId();
+
+        Commit refused = new Commit("refused", readHead, "master");
+        refused.setTrackedFiles(StagingArea.getNewestStagingArea());
+        String refusedId = saveObject(refused);
+        boolean rejected = false;
+        try {
+            Refs.updateHead(refusedId, readHead, "master");
+        } catch (GitletException e) {
+            rejected = true;
+        }
+        check("updating a moved branch is rejected", rejected);
+        check("the branch keeps the other process's commit",
+                Refs.getHeadCommitId().equals(movedHead));
+    }
+
+    /**
+     * A commit another process added to the commit graph after this one loaded
+     * it is not added again, and the message index names the right commits.
+     */
+    private static void checkStaleGraphAddsNoDuplicates() throws Exception {
+        CommitGraph.size();
+        writeContents(join(Repository.CWD, "e.txt"), "e");
+        gitlet("add", "e.txt");
+        gitlet("commit", "external");
+        writeContents(join(Repository.CWD, "f.txt"), "f");
+        gitlet("add", "f.txt");
+        Main.run(new String[]{"commit", "internal"});
+
+        long logged = gitlet("global-log").stream().filter(line -> line.equals("external")).count();
+        check("the other process's commit is logged once", logged == 1);
+        check("find --token names the commit of this process",
+                gitlet("find", "--token", "internal").equals(List.of(Refs.getHeadCommitId())));
+    }
+
+    /**
+     * Runs gitlet with ARGS in a separate process and returns its output lines.
+     */
+    private static List<String> gitlet(String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), "gitlet.Main"));
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<String> output = new String(process.getInputStream().readAllBytes()).lines()
+                .collect(Collectors.toList());
+        process.waitFor();
+        return output;
+    }
+
+    private static void check(String description, boolean passed) {
+        System.out.println((passed ? "ok      " : "FAILED  ") + description);
+        if (!passed) {
+            failures++;
+        }
+    }
+}